@@ -0,0 +1,256 @@
+/*
+ * AccessLog.java
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log in Apache's common or combined format, written without making
+ * requests wait on the disk. Request threads only copy what the line needs
+ * into an Entry and drop it into a fixed-size ring buffer, claiming a slot
+ * with a compare-and-set; a single background thread formats the entries
+ * and writes them to the file in batches, one write() per batch. If the
+ * ring is full, because the disk can't keep up, entries are dropped and
+ * counted rather than blocking the request.
+ */
+public class AccessLog implements Runnable {
+
+    // most entries formatted into one write
+    private static final int BATCH = 1024;
+    // how long the writer sleeps when there is nothing to write
+    private static final long IDLE_NANOS = 10_000_000L;
+
+    private static final DateTimeFormatter TIME =
+        DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneId.systemDefault());
+
+    /**
+     * What we know about one request, copied out of the connection's
+     * reused HttpRequest.
+     */
+    static class Entry {
+        final long time;
+        final String remote;
+        final String method; // null for a request we couldn't parse
+        final String fileName;
+        final String version;
+        final int status;
+        final long bytes;
+        final String referer;
+        final String userAgent;
+
+        Entry(String remote, HttpRequest req, HttpResponse response) {
+            this.time = System.currentTimeMillis();
+            this.remote = remote;
+            this.method = req != null ? req.method : null;
+            this.fileName = req != null ? req.fileName : null;
+            this.version = req != null ? req.version : null;
+            this.status = response.status;
+            this.bytes = response.bodyLength();
+            this.referer = req != null ? req.referer : null;
+            this.userAgent = req != null ? req.userAgent : null;
+        }
+    }
+
+    private final boolean combined;
+    private final FileChannel file;
+    private final AtomicReferenceArray<Entry> ring;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(); // next slot to claim
+    private volatile long head;                      // next slot to write, only the writer moves it
+    private final Thread writer;
+    private volatile boolean closed;
+
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    // writer thread only
+    private final StringBuilder line = new StringBuilder(256);
+    private ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+    private long timeSecond = -1;
+    private String timeText;
+
+    /**
+     * Opens (appending to) the log at path. capacity is the number of
+     * entries the ring holds, rounded up to a power of two.
+     */
+    public AccessLog(String path, boolean combined, int capacity) throws IOException {
+        this.combined = combined;
+        this.file = FileChannel.open(Paths.get(path),
+                                     StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        int n = 1;
+        while (n < capacity) n <<= 1;
+        this.ring = new AtomicReferenceArray<>(n);
+        this.mask = n - 1;
+
+        writer = new Thread(this, "access-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues the log line for a response sent to remote. req is null if
+     * the request couldn't be parsed. Never blocks.
+     */
+    public void log(String remote, HttpRequest req, HttpResponse response) {
+        Entry entry = new Entry(remote, req, response);
+        long slot;
+        do {
+            slot = tail.get();
+            if (slot - head > mask) {
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(slot, slot + 1));
+        // the writer waits for the slot to become non-null, so a claimed
+        // slot is never skipped even if we are descheduled right here
+        ring.lazySet((int) slot & mask, entry);
+    }
+
+    public void run() {
+        while (true) {
+            int count = drain();
+            if (count == 0) {
+                if (closed) return;
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Writes out up to a batch of queued entries, returning how many.
+     */
+    private int drain() {
+        int count = 0;
+        long h = head;
+        out.clear();
+        while (count < BATCH) {
+            int i = (int) h & mask;
+            Entry entry = ring.get(i);
+            if (entry == null) break;
+            ring.lazySet(i, null);
+            h++;
+            head = h;
+            append(entry);
+            count++;
+        }
+        if (count > 0) {
+            out.flip();
+            try {
+                while (out.hasRemaining()) {
+                    file.write(out);
+                }
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+            written.add(count);
+        }
+        return count;
+    }
+
+    /**
+     * host ident authuser [date] "request" status bytes, and for the
+     * combined format "referer" "user-agent" after that.
+     */
+    private void append(Entry e) {
+        line.setLength(0);
+        line.append(e.remote).append(" - - [").append(time(e.time)).append("] \"");
+        if (e.method != null) {
+            escape(e.method);
+            line.append(" /");
+            escape(e.fileName);
+            line.append(' ');
+            escape(e.version);
+        } else {
+            line.append('-');
+        }
+        line.append("\" ").append(e.status).append(' ');
+        if (e.bytes > 0) {
+            line.append(e.bytes);
+        } else {
+            line.append('-');
+        }
+        if (combined) {
+            line.append(" \"");
+            if (e.referer != null) escape(e.referer); else line.append('-');
+            line.append("\" \"");
+            if (e.userAgent != null) escape(e.userAgent); else line.append('-');
+            line.append('"');
+        }
+        line.append('\n');
+
+        if (out.remaining() < line.length()) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + line.length()));
+            out.flip();
+            bigger.put(out);
+            out = bigger;
+        }
+        for (int i = 0; i < line.length(); i++) {
+            out.put((byte) line.charAt(i));
+        }
+    }
+
+    /**
+     * Appends s the way Apache does: quotes and backslashes escaped, bytes
+     * outside printable ASCII as \xhh.
+     */
+    private void escape(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c < 0x20 || c >= 0x7f) {
+                line.append("\\x").append(Character.forDigit((c >> 4) & 0xf, 16)).append(Character.forDigit(c & 0xf, 16));
+            } else {
+                line.append(c);
+            }
+        }
+    }
+
+    private String time(long millis) {
+        long second = millis / 1000;
+        if (second != timeSecond) {
+            timeSecond = second;
+            timeText = TIME.format(Instant.ofEpochSecond(second));
+        }
+        return timeText;
+    }
+
+    /**
+     * Writes out whatever is still queued and closes the file.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+            file.close();
+        }
+        catch (InterruptedException | IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public long written() {
+        return written.sum();
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    public String toString() {
+        return "access log: " + written() + " lines written, " + dropped() + " dropped";
+    }
+}
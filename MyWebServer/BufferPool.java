@@ -0,0 +1,126 @@
+/*
+ * BufferPool.java
+ */
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Direct ByteBuffers of one size, reused for reading requests and writing
+ * responses so a busy server doesn't allocate (and the JDK doesn't copy
+ * heap buffers into its own temporary direct buffers) on every request.
+ *
+ * Idle buffers sit in slots split into stripes, a thread taking from and
+ * giving back to the stripe picked by its id, so threads rarely touch the
+ * same slots. Taking and returning a buffer is a compare-and-set on a slot
+ * and never allocates. When every slot of a stripe is empty a new buffer
+ * is allocated; when every slot is full a returned buffer is dropped for
+ * the garbage collector. A buffer that is never returned is simply lost to
+ * the pool, so callers needn't return buffers on every error path.
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final AtomicReferenceArray<ByteBuffer>[] stripes;
+    private final int mask;
+
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * A pool of buffers of bufferSize bytes keeping at most about maxIdle
+     * of them while they are not in use.
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(int bufferSize, int maxIdle) {
+        this.bufferSize = bufferSize;
+        int n = 1;
+        while (n < Runtime.getRuntime().availableProcessors() * 2) n <<= 1;
+        int slots = Math.max(1, (maxIdle + n - 1) / n);
+        this.stripes = new AtomicReferenceArray[n];
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new AtomicReferenceArray<>(slots);
+        }
+        this.mask = n - 1;
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * A cleared buffer, from the pool if there is one.
+     */
+    public ByteBuffer acquire() {
+        acquired.increment();
+        AtomicReferenceArray<ByteBuffer> slots = stripe();
+        for (int i = 0; i < slots.length(); i++) {
+            ByteBuffer buf = slots.get(i);
+            if (buf != null && slots.compareAndSet(i, buf, null)) {
+                buf.clear();
+                return buf;
+            }
+        }
+        allocated.increment();
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Gives a buffer back, the caller must not touch it afterwards.
+     */
+    public void release(ByteBuffer buf) {
+        released.increment();
+        AtomicReferenceArray<ByteBuffer> slots = stripe();
+        for (int i = 0; i < slots.length(); i++) {
+            if (slots.get(i) == null && slots.compareAndSet(i, null, buf)) {
+                return;
+            }
+        }
+        dropped.increment();
+    }
+
+    private AtomicReferenceArray<ByteBuffer> stripe() {
+        return stripes[(int) Thread.currentThread().getId() & mask];
+    }
+
+    /**
+     * Buffers handed out and not given back yet.
+     */
+    public long inUse() {
+        // released first so a buffer returned in between can't make this negative
+        long r = released.sum();
+        return acquired.sum() - r;
+    }
+
+    /**
+     * Buffers waiting in the pool.
+     */
+    public int idle() {
+        int count = 0;
+        for (AtomicReferenceArray<ByteBuffer> slots : stripes) {
+            for (int i = 0; i < slots.length(); i++) {
+                if (slots.get(i) != null) count++;
+            }
+        }
+        return count;
+    }
+
+    public long acquired() {
+        return acquired.sum();
+    }
+
+    public long allocated() {
+        return allocated.sum();
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    public String toString() {
+        return "buffer pool: " + inUse() + " in use, " + idle() + " idle, " + acquired() + " acquired, "
+            + allocated() + " allocated, " + dropped() + " dropped";
+    }
+}
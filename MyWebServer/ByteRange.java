@@ -0,0 +1,110 @@
+/*
+ * ByteRange.java
+ */
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * One satisfiable range of a "Range: bytes=..." request header (RFC 7233),
+ * with both ends inclusive.
+ */
+public class ByteRange {
+
+    // more ranges than this and we just send the whole file
+    static final int MAX_RANGES = 32;
+
+    public final long first;
+    public final long last;
+
+    ByteRange(long first, long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    public long length() {
+        return last - first + 1;
+    }
+
+    /**
+     * Parses a Range header against a file of the given length. Returns null
+     * if the header should be ignored (malformed, not in bytes, or too many
+     * ranges) and an empty list if none of the ranges can be satisfied.
+     *
+     * Overlapping and adjacent ranges are merged, in file order. A header
+     * whose ranges add up to more than the file is ignored too (RFC 9110
+     * section 14.2), so repeating "0-" can't make us send the file over
+     * and over in one response.
+     */
+    public static List<ByteRange> parse(String header, long length) {
+        if (!header.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+
+        List<ByteRange> ranges = new ArrayList<>();
+        long total = 0;
+        int count = 0;
+        int pos = 6;
+        while (pos <= header.length()) {
+            int comma = header.indexOf(',', pos);
+            if (comma < 0) comma = header.length();
+            String spec = header.substring(pos, comma).trim();
+            pos = comma + 1;
+            if (spec.isEmpty()) continue;
+            if (++count > MAX_RANGES) return null;
+
+            int dash = spec.indexOf('-');
+            if (dash < 0) return null;
+            long first;
+            long last;
+            try {
+                if (dash == 0) {
+                    // suffix range, the last n bytes
+                    long n = Long.parseLong(spec.substring(1));
+                    if (n < 0) return null;
+                    if (n == 0) continue;
+                    first = Math.max(0, length - n);
+                    last = length - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    last = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+                    if (first < 0 || last < first) return null;
+                    last = Math.min(last, length - 1);
+                }
+            }
+            catch (NumberFormatException e) {
+                return null;
+            }
+
+            if (first < length) {
+                ranges.add(new ByteRange(first, last));
+                total += last - first + 1;
+                if (total > length) return null;
+            }
+        }
+        if (count == 0) {
+            return null;
+        }
+        return merge(ranges);
+    }
+
+    private static List<ByteRange> merge(List<ByteRange> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        ranges.sort(Comparator.comparingLong(r -> r.first));
+        List<ByteRange> merged = new ArrayList<>();
+        ByteRange cur = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            ByteRange r = ranges.get(i);
+            if (r.first <= cur.last + 1) {
+                cur = new ByteRange(cur.first, Math.max(cur.last, r.last));
+            } else {
+                merged.add(cur);
+                cur = r;
+            }
+        }
+        merged.add(cur);
+        return merged;
+    }
+}
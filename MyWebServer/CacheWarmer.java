@@ -0,0 +1,208 @@
+/*
+ * CacheWarmer.java
+ */
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fills the content cache before the server starts accepting connections,
+ * so the first requests after a restart don't all go to the disk. Files
+ * named in the hot path list saved by the previous run are loaded first,
+ * in the order they were listed; whatever is left of the byte budget goes
+ * to files found by walking the document root, index pages first and then
+ * the smallest files, which buys the most hits per byte. The walk and the
+ * reads run in parallel on a fork/join pool.
+ *
+ * The hot path list is the content cache's files, most hit first, written
+ * on shutdown as one path per line relative to the document root.
+ */
+public class CacheWarmer {
+
+    // below this many files a task reads them itself instead of splitting
+    private static final int LOAD_THRESHOLD = 8;
+
+    private final ContentCache cache;
+    private final Path root;
+    private final long maxFile;
+
+    public CacheWarmer(ContentCache cache, String dir, long maxFile) throws IOException {
+        this.cache = cache;
+        this.root = new File(dir).getCanonicalFile().toPath();
+        this.maxFile = maxFile;
+    }
+
+    /**
+     * Loads up to budget bytes into the cache, hotPaths (may be null) first.
+     */
+    public void warm(long budget, String hotPaths) {
+        long start = System.currentTimeMillis();
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            List<File> hot = hotPaths != null ? readHotPaths(hotPaths) : new ArrayList<>();
+            List<File> all = pool.invoke(new Walk(root.toFile()));
+            all.sort(Comparator.comparing((File f) -> !f.getName().equals("index.html"))
+                         .thenComparingLong(File::length));
+
+            // pick the files sequentially so the budget is spent in order,
+            // then read them in parallel
+            List<File> chosen = new ArrayList<>();
+            Set<File> seen = new HashSet<>();
+            long planned = 0;
+            int fromHot = 0;
+            for (List<File> files : List.of(hot, all)) {
+                for (File f : files) {
+                    long length = f.length();
+                    if (length > maxFile || planned + length > budget || !seen.add(f)) continue;
+                    chosen.add(f);
+                    planned += length;
+                    if (files == hot) fromHot++;
+                }
+            }
+            AtomicLong loaded = new AtomicLong();
+            pool.invoke(new Load(chosen, 0, chosen.size(), loaded));
+
+            System.out.println("cache warm-up: " + loaded.get() + " bytes from " + chosen.size() + " files ("
+                               + fromHot + " from the hot path list) in "
+                               + (System.currentTimeMillis() - start) + " ms");
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Writes the cache's files, most hit first, to path. Written to a
+     * temporary file first so a crash can't leave half a list behind.
+     */
+    public void saveHotPaths(String path) {
+        StringBuilder sb = new StringBuilder();
+        int count = 0;
+        for (String key : cache.hottest()) {
+            Path p = Paths.get(key);
+            if (!p.startsWith(root)) continue;
+            sb.append(root.relativize(p).toString().replace(File.separatorChar, '/')).append('\n');
+            count++;
+        }
+        try {
+            Path target = Paths.get(path).toAbsolutePath();
+            Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+            Files.write(tmp, sb.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            System.out.println("hot path list: " + count + " paths written to " + path);
+        }
+        catch (IOException e) {
+            System.err.println("Could not write hot path list " + path + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * The files listed in the hot path list that still exist under the
+     * document root. A missing list is not an error, there just wasn't a
+     * previous run.
+     */
+    private List<File> readHotPaths(String path) {
+        List<File> files = new ArrayList<>();
+        Path list = Paths.get(path);
+        if (!Files.exists(list)) {
+            return files;
+        }
+        try {
+            for (String line : Files.readAllLines(list, StandardCharsets.UTF_8)) {
+                if (line.isEmpty()) continue;
+                File f = root.resolve(line).toFile().getCanonicalFile();
+                if (f.toPath().startsWith(root) && f.isFile()) {
+                    files.add(f);
+                }
+            }
+        }
+        catch (IOException e) {
+            System.err.println("Could not read hot path list " + path + ": " + e.getMessage());
+        }
+        return files;
+    }
+
+    /**
+     * Every file small enough to cache under a directory, each
+     * subdirectory walked by a task of its own.
+     */
+    private class Walk extends RecursiveTask<List<File>> {
+        private final File dir;
+
+        Walk(File dir) {
+            this.dir = dir;
+        }
+
+        protected List<File> compute() {
+            List<File> files = new ArrayList<>();
+            File[] children = dir.listFiles();
+            if (children == null) {
+                return files;
+            }
+            List<Walk> subdirs = new ArrayList<>();
+            for (File child : children) {
+                if (Files.isSymbolicLink(child.toPath()) && child.isDirectory()) {
+                    continue; // could lead out of the root or round in circles
+                } else if (child.isDirectory()) {
+                    Walk w = new Walk(child);
+                    w.fork();
+                    subdirs.add(w);
+                } else if (child.isFile() && child.length() <= maxFile) {
+                    files.add(child);
+                }
+            }
+            for (Walk w : subdirs) {
+                files.addAll(w.join());
+            }
+            return files;
+        }
+    }
+
+    /**
+     * Reads files[from, to) into the cache, splitting the range in half
+     * until it is small.
+     */
+    private class Load extends RecursiveAction {
+        private final List<File> files;
+        private final int from;
+        private final int to;
+        private final AtomicLong loaded;
+
+        Load(List<File> files, int from, int to, AtomicLong loaded) {
+            this.files = files;
+            this.from = from;
+            this.to = to;
+            this.loaded = loaded;
+        }
+
+        protected void compute() {
+            if (to - from > LOAD_THRESHOLD) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Load(files, from, mid, loaded), new Load(files, mid, to, loaded));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                File f = files.get(i);
+                try {
+                    loaded.addAndGet(cache.preload(f.getCanonicalPath(), f, f.lastModified(), f.length()));
+                }
+                catch (IOException e) {
+                    // gone or unreadable, it'll be a miss like any other
+                }
+            }
+        }
+    }
+}
@@ -1,38 +1,359 @@
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.UnknownHostException;
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.OutputStream;
-
-public class Client{
-    public static void main(String[] args) {
-        Socket server;
-        //InputStream in;
-        OutputStream out;
-        PrintWriter pout;
-        try {
-            server = new Socket("127.0.0.1", 8817);
-
-            //in = server.getInputStream();
-            out = server.getOutputStream();
-
-            pout = new PrintWriter(out, true);
-            pout.println("Hello!");
-
-            server.close();
-        }
-        catch (UnknownHostException e) {
-            System.err.println("Can't find host.");
-            System.exit(1);
-        }
-        catch (IOException e) {
-            System.err.println("Error connecting to host.");
-            System.exit(1);
-        }
-        catch (Exception e) {
-            System.err.println("Failed.");
-            System.exit(1);
-        }
-    }
-}
+/*
+ * Client.java
+ */
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator for MyWebServer. Drives a number of concurrent clients,
+ * each on its own connection, at a fixed overall request rate and reports
+ * throughput and latency percentiles.
+ *
+ * The rate is open loop: request i is due at start + i / rate whether or
+ * not earlier requests have been answered, and its latency is measured from
+ * that due time rather than from when it was actually sent. A stalled
+ * server therefore shows up as the queueing delay every client would have
+ * seen instead of hiding behind clients that politely waited (coordinated
+ * omission). The time from actual send to answer is reported separately
+ * as the service time.
+ */
+public class Client {
+
+    public static final String USAGE =
+        "Usage: java Client <host> <port> [options]\n" +
+        "Options:\n" +
+        "  --path=PATH                  request target (default: /)\n" +
+        "  --connections=N              concurrent clients, one connection each (default: 16)\n" +
+        "  --rate=N                     requests per second across all clients (default: 1000)\n" +
+        "  --duration=SECONDS           how long to measure for (default: 10)\n" +
+        "  --warmup=SECONDS             how long to run before measuring (default: 2)\n" +
+        "  --connection=keep-alive|close reuse connections or open one per request (default: keep-alive)\n" +
+        "  --timeout=SECONDS            give up on a response after this long (default: 10)";
+
+    // percentiles printed in the report
+    private static final double[] PERCENTILES = { 50, 75, 90, 99, 99.9, 99.99, 100 };
+    private static final String[] PERCENTILE_NAMES = { "p50", "p75", "p90", "p99", "p99.9", "p99.99", "max" };
+
+    private String host;
+    private int port;
+    private String path = "/";
+    private int connections = 16;
+    private int rate = 1000;
+    private int duration = 10;
+    private int warmup = 2;
+    private boolean keepAlive = true;
+    private int timeout = 10;
+
+    // results, shared by every client thread
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram serviceTime = new LatencyHistogram();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder[] statuses = new LongAdder[6]; // by first digit
+
+    public static void main(String[] args) throws InterruptedException {
+        Client client = null;
+        try {
+            client = parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("client: " + e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        client.run();
+    }
+
+    static Client parse(String[] args) {
+        if (args.length < 2) {
+            throw new IllegalArgumentException("missing host or port number");
+        }
+
+        Client client = new Client();
+        client.host = args[0];
+        try {
+            client.port = Integer.parseInt(args[1]);
+            if (client.port < 0) throw new NumberFormatException();
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid port number: " + args[1]);
+        }
+
+        for (int i = 2; i < args.length; i++) {
+            String arg = args[i];
+            int eqIdx = arg.indexOf('=');
+            if (!arg.startsWith("--") || eqIdx < 0) {
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            }
+            client.set(arg.substring(2, eqIdx), arg.substring(eqIdx + 1));
+        }
+        return client;
+    }
+
+    private void set(String name, String val) {
+        switch (name) {
+            case "path":
+                path = val.startsWith("/") ? val : "/" + val;
+                break;
+            case "connections":
+                connections = positiveInt(name, val);
+                break;
+            case "rate":
+                rate = positiveInt(name, val);
+                break;
+            case "duration":
+                duration = positiveInt(name, val);
+                break;
+            case "warmup":
+                try {
+                    warmup = Integer.parseInt(val);
+                    if (warmup < 0) throw new NumberFormatException();
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid value for --" + name + ": " + val);
+                }
+                break;
+            case "connection":
+                if (!val.equals("keep-alive") && !val.equals("close")) {
+                    throw new IllegalArgumentException("Invalid connection: " + val);
+                }
+                keepAlive = val.equals("keep-alive");
+                break;
+            case "timeout":
+                timeout = positiveInt(name, val);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: --" + name);
+        }
+    }
+
+    private static int positiveInt(String name, String val) {
+        try {
+            int n = Integer.parseInt(val);
+            if (n <= 0) throw new NumberFormatException();
+            return n;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for --" + name + ": " + val);
+        }
+    }
+
+    void run() throws InterruptedException {
+        for (int i = 0; i < statuses.length; i++) {
+            statuses[i] = new LongAdder();
+        }
+        byte[] request = ("GET " + path + " HTTP/1.1\r\n"
+                          + "Host: " + host + ":" + port + "\r\n"
+                          + (keepAlive ? "" : "Connection: close\r\n")
+                          + "\r\n").getBytes(StandardCharsets.US_ASCII);
+
+        System.out.println(connections + " connections (" + (keepAlive ? "keep-alive" : "close") + "), "
+                           + rate + " req/s for " + duration + " s after " + warmup + " s warmup: "
+                           + "GET http://" + host + ":" + port + path);
+
+        // give the threads a moment to start before the first request is due
+        long start = System.nanoTime() + 100_000_000L;
+        long measureFrom = start + warmup * 1_000_000_000L;
+        long end = measureFrom + duration * 1_000_000_000L;
+
+        Thread[] threads = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            Worker worker = new Worker(i, request, start, measureFrom, end);
+            threads[i] = new Thread(worker, "load-client-" + (i + 1));
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        report(Math.max(1, System.nanoTime() - measureFrom));
+    }
+
+    private void report(long elapsed) {
+        double seconds = Math.min(elapsed, duration * 1_000_000_000L) / 1e9;
+        long done = completed.sum();
+        System.out.println();
+        System.out.printf("requests:     %d completed, %d errors, 1xx=%d 2xx=%d 3xx=%d 4xx=%d 5xx=%d%n",
+                          done, errors.sum(), statuses[1].sum(), statuses[2].sum(),
+                          statuses[3].sum(), statuses[4].sum(), statuses[5].sum());
+        System.out.printf("throughput:   %.1f req/s, %.2f MB/s%n", done / seconds, bytes.sum() / seconds / 1e6);
+        if (done < rate * seconds * 0.95) {
+            System.out.println("              (below the target rate, the server or this client is saturated)");
+        }
+        printHistogram("latency, from when each request was due (us):", latency);
+        printHistogram("service time, from when each request was sent (us):", serviceTime);
+    }
+
+    private static void printHistogram(String title, LatencyHistogram h) {
+        System.out.println();
+        System.out.println(title);
+        System.out.printf("  %-6s %10.0f%n", "mean", h.mean() / 1000);
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            System.out.printf("  %-6s %10d%n", PERCENTILE_NAMES[i], h.percentile(PERCENTILES[i]) / 1000);
+        }
+    }
+
+    /**
+     * One client: sends every connections-th request of the schedule,
+     * starting with request number id, over its own connection.
+     */
+    private class Worker implements Runnable {
+        private final int id;
+        private final byte[] request;
+        private final long start;
+        private final long measureFrom;
+        private final long end;
+
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+        private final byte[] buf = new byte[16 * 1024];
+        private int pos;
+        private int limit;
+
+        Worker(int id, byte[] request, long start, long measureFrom, long end) {
+            this.id = id;
+            this.request = request;
+            this.start = start;
+            this.measureFrom = measureFrom;
+            this.end = end;
+        }
+
+        public void run() {
+            double interval = 1e9 / rate;
+            for (long i = id; ; i += connections) {
+                long due = start + (long) (i * interval);
+                if (due >= end) break;
+                long now;
+                while ((now = System.nanoTime()) < due) {
+                    LockSupport.parkNanos(due - now);
+                }
+
+                boolean measured = due >= measureFrom;
+                try {
+                    int status = exchange();
+                    long done = System.nanoTime();
+                    if (measured) {
+                        latency.record(done - due);
+                        serviceTime.record(done - now);
+                        completed.increment();
+                        statuses[status / 100 % statuses.length].increment();
+                    }
+                }
+                catch (IOException e) {
+                    if (measured) errors.increment();
+                    disconnect();
+                }
+            }
+            disconnect();
+        }
+
+        /**
+         * Sends the request and reads the whole response, returning its
+         * status code.
+         */
+        private int exchange() throws IOException {
+            if (socket == null) {
+                socket = new Socket();
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(timeout * 1000);
+                socket.connect(new InetSocketAddress(host, port), timeout * 1000);
+                in = socket.getInputStream();
+                out = socket.getOutputStream();
+                pos = limit = 0;
+            }
+            out.write(request);
+
+            String statusLine = readLine();
+            if (statusLine.length() < 12 || !statusLine.startsWith("HTTP/")) {
+                throw new IOException("bad status line: " + statusLine);
+            }
+            int status;
+            try {
+                status = Integer.parseInt(statusLine.substring(9, 12));
+            } catch (NumberFormatException e) {
+                throw new IOException("bad status line: " + statusLine);
+            }
+
+            long contentLength = -1;
+            boolean close = !keepAlive;
+            String line;
+            while (!(line = readLine()).isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon < 0) continue;
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    try {
+                        contentLength = Long.parseLong(value);
+                        if (contentLength < 0) throw new NumberFormatException();
+                    } catch (NumberFormatException e) {
+                        // we can't tell where the body ends, the connection is unusable
+                        throw new IOException("bad Content-Length: " + value);
+                    }
+                } else if (name.equalsIgnoreCase("Connection") && value.equalsIgnoreCase("close")) {
+                    close = true;
+                }
+            }
+            if (status == 204 || status == 304 || status / 100 == 1) {
+                contentLength = 0;
+            }
+
+            long received = 0;
+            if (contentLength < 0) {
+                // no length, the body runs until the server closes
+                close = true;
+                while (fill()) {
+                    received += limit - pos;
+                    pos = limit;
+                }
+            } else {
+                while (received < contentLength) {
+                    if (pos == limit && !fill()) throw new IOException("connection closed mid-body");
+                    int n = (int) Math.min(limit - pos, contentLength - received);
+                    pos += n;
+                    received += n;
+                }
+            }
+            bytes.add(received);
+
+            if (close) {
+                disconnect();
+            }
+            return status;
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            while (true) {
+                if (pos == limit && !fill()) throw new IOException("connection closed mid-head");
+                byte b = buf[pos++];
+                if (b == '\n') break;
+                if (b != '\r') line.append((char) b);
+            }
+            return line.toString();
+        }
+
+        private boolean fill() throws IOException {
+            int n = in.read(buf);
+            if (n < 0) return false;
+            pos = 0;
+            limit = n;
+            return true;
+        }
+
+        private void disconnect() {
+            if (socket == null) return;
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+            socket = null;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * CompressionCache.java
+ */
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzipped copies of compressible files, made once per file version and
+ * kept in memory so we don't recompress on every request. Like the content
+ * cache it is keyed by canonical path, validated against lastModified and
+ * length, bounded by total bytes and evicts least recently used first.
+ * Concurrent misses for the same file are compressed once.
+ */
+public class CompressionCache {
+
+    // extensions of files worth compressing
+    private static final String[] COMPRESSIBLE = {
+        ".html", ".htm", ".css", ".js", ".mjs", ".json", ".xml", ".svg", ".txt", ".csv", ".md",
+    };
+
+    // below this gzip's own overhead eats most of the savings
+    static final long MIN_SIZE = 256;
+
+    public static class Entry {
+        public final byte[] body; // null if compressing didn't make it smaller
+        public final long lastModified;
+        public final long length; // of the uncompressed file
+
+        Entry(byte[] body, long lastModified, long length) {
+            this.body = body;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        long size() {
+            return body != null ? body.length : 0;
+        }
+    }
+
+    private final long maxBytes;
+    private final long maxFileSize;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final SingleFlight<Entry> loads = new SingleFlight<>();
+
+    public CompressionCache(long maxBytes, long maxFileSize) {
+        this.maxBytes = maxBytes;
+        this.maxFileSize = maxFileSize;
+    }
+
+    public static boolean isCompressible(File file, long length) {
+        if (length < MIN_SIZE) return false;
+        String name = file.getName();
+        for (String ext : COMPRESSIBLE) {
+            if (name.regionMatches(true, name.length() - ext.length(), ext, 0, ext.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the gzipped contents of the file at canonical path key,
+     * compressing them if they are missing or stale. uncompressed may hold
+     * the file's contents if the caller already has them, otherwise they are
+     * read from disk. Returns null if the file is too large to compress in
+     * memory or compressing doesn't make it smaller.
+     */
+    public byte[] get(String key, File file, long lastModified, long length, byte[] uncompressed) throws IOException {
+        if (length > maxFileSize) {
+            return null;
+        }
+
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.lastModified == lastModified && entry.length == length) {
+                hits.increment();
+                return entry.body;
+            }
+        }
+        misses.increment();
+
+        // concurrent misses for the same version of the file share one compression
+        Entry entry = loads.load(key + '@' + lastModified + '@' + length, () -> {
+            byte[] data = uncompressed != null ? uncompressed : Files.readAllBytes(file.toPath());
+            byte[] compressed = gzip(data);
+            Entry e = new Entry(compressed.length < data.length ? compressed : null, lastModified, data.length);
+            if (e.length == length) {
+                put(key, e);
+            }
+            return e;
+        });
+        return entry.body;
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 2);
+        try (GZIPOutputStream gz = new GZIPOutputStream(bytes)) {
+            gz.write(data);
+        }
+        return bytes.toByteArray();
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        Entry old = entries.put(key, entry);
+        if (old != null) {
+            size -= old.size();
+        }
+        size += entry.size();
+
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (size > maxBytes && it.hasNext()) {
+            Entry eldest = it.next().getValue();
+            it.remove();
+            size -= eldest.size();
+            evictions.increment();
+        }
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Misses that waited for another request's compression of the same file.
+     */
+    public long coalesced() {
+        return loads.coalesced();
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    public synchronized int count() {
+        return entries.size();
+    }
+
+    public String toString() {
+        return "compression cache: " + count() + " files, " + size() + " bytes, "
+            + hits() + " hits, " + misses() + " misses (" + coalesced() + " coalesced), " + evictions() + " evictions";
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * ConnectionLimiter.java
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Caps the number of connections being served at once. The accept thread
+ * asks for a permit for every connection it accepts and the connection
+ * gives it back when it closes. A connection that gets no permit, or can't
+ * be queued for a worker, is shed: it gets a 503 with Retry-After and is
+ * closed straight away, without the request even being read. Everything
+ * but the status line and Date of that 503 is encoded once at startup.
+ */
+public class ConnectionLimiter {
+
+    // what a shed client already sent is read into this and thrown away;
+    // one per thread since every acceptor and event loop may be shedding
+    private static final ThreadLocal<ByteBuffer> DRAIN =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(4096));
+
+    private final int max; // 0 for no limit
+    private final AtomicInteger open = new AtomicInteger();
+    private final ServerStats stats;
+
+    // the 503 after its Date line
+    private final byte[] rest;
+
+    public ConnectionLimiter(ServerConfig config, ServerStats stats) {
+        this.max = config.maxConnections;
+        this.stats = stats;
+        byte[] fields = MyWebServer.Header.ascii(
+            "Retry-After: " + config.retryAfter + "\r\n" +
+            "Content-Length: " + MyWebServer.serviceUnavailableBytes.length + "\r\n" +
+            "Connection: close\r\n" +
+            "\r\n");
+        this.rest = ByteBuffer.allocate(MyWebServer.Header.SERVER.length + fields.length
+                                        + MyWebServer.serviceUnavailableBytes.length)
+            .put(MyWebServer.Header.SERVER)
+            .put(fields)
+            .put(MyWebServer.serviceUnavailableBytes)
+            .array();
+    }
+
+    /**
+     * Takes a permit for a new connection, false if we are at the limit.
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int n = open.get();
+            if (max > 0 && n >= max) return false;
+            if (open.compareAndSet(n, n + 1)) return true;
+        }
+    }
+
+    public void release() {
+        open.decrementAndGet();
+    }
+
+    public int open() {
+        return open.get();
+    }
+
+    /**
+     * Sends the 503 and closes the connection. Runs on the accept thread,
+     * so the channel is switched to non-blocking and we make a single
+     * attempt at the write, which fits in any socket's send buffer.
+     */
+    public void reject(SocketChannel channel) {
+        try {
+            channel.configureBlocking(false);
+            ByteBuffer[] response = {
+                ByteBuffer.wrap(MyWebServer.Header.SERVICE_UNAVAILABLE),
+                ByteBuffer.wrap(HttpDate.dateLine()),
+                ByteBuffer.wrap(rest),
+            };
+            long written = channel.write(response);
+            channel.shutdownOutput();
+            // closing with unread input resets the connection, which can make
+            // the client lose the 503, so read whatever has already arrived
+            ByteBuffer discard = DRAIN.get();
+            discard.clear();
+            while (channel.read(discard) > 0) {
+                discard.clear();
+            }
+            stats.connectionRejected(written);
+        }
+        catch (IOException e) {
+            // the client is gone already, nothing to tell it
+        }
+        finally {
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
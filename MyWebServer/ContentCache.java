@@ -0,0 +1,172 @@
+/*
+ * ContentCache.java
+ */
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory copy of small, frequently requested files so they can be sent
+ * without touching the disk. Entries are keyed by canonical path and only
+ * used while the file's lastModified and length still match. The cache is
+ * bounded by the total size of the cached bodies and evicts the least
+ * recently used entry first. Concurrent misses for the same file are
+ * served by a single read.
+ */
+public class ContentCache {
+
+    public static class Entry {
+        public final byte[] body;
+        public final long lastModified;
+        public final long length;
+        private long hits; // guarded by the cache
+
+        Entry(byte[] body, long lastModified) {
+            this.body = body;
+            this.lastModified = lastModified;
+            this.length = body.length;
+        }
+    }
+
+    private final long maxBytes;
+    private final long maxFileSize;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final SingleFlight<Entry> loads = new SingleFlight<>();
+
+    public ContentCache(long maxBytes, long maxFileSize) {
+        this.maxBytes = maxBytes;
+        this.maxFileSize = Math.min(maxFileSize, maxBytes);
+    }
+
+    /**
+     * Returns the cached contents of the file at canonical path key, reading
+     * and caching them if they are missing or stale. Returns null if the
+     * file is too large to cache, in which case the caller should stream it
+     * from disk.
+     */
+    public Entry get(String key, File file, long lastModified, long length) throws IOException {
+        if (length > maxFileSize) {
+            return null;
+        }
+
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.lastModified == lastModified && entry.length == length) {
+                hits.increment();
+                entry.hits++;
+                return entry;
+            }
+        }
+        misses.increment();
+
+        // concurrent misses for the same version of the file share one read
+        return loads.load(key + '@' + lastModified + '@' + length, () -> {
+            Entry entry = new Entry(Files.readAllBytes(file.toPath()), lastModified);
+            if (entry.length == length) {
+                put(key, entry);
+            }
+            // otherwise it changed while we were reading it, serve what we read but don't keep it
+            return entry;
+        });
+    }
+
+    /**
+     * Reads the file at canonical path key into the cache ahead of any
+     * request for it, as long as it fits without evicting anything.
+     * Returns the number of bytes cached, 0 if it was too large, already
+     * cached or didn't fit.
+     */
+    public long preload(String key, File file, long lastModified, long length) throws IOException {
+        if (length > maxFileSize) {
+            return 0;
+        }
+        synchronized (this) {
+            if (entries.containsKey(key) || size + length > maxBytes) {
+                return 0;
+            }
+        }
+        Entry entry = new Entry(Files.readAllBytes(file.toPath()), lastModified);
+        synchronized (this) {
+            if (entry.length != length || entries.containsKey(key) || size + entry.length > maxBytes) {
+                return 0;
+            }
+            put(key, entry);
+        }
+        return entry.length;
+    }
+
+    /**
+     * The canonical paths of the cached files, most hit first.
+     */
+    public synchronized List<String> hottest() {
+        List<Map.Entry<String, Entry>> all = new ArrayList<>(entries.entrySet());
+        // most recently used first among files with as many hits
+        Collections.reverse(all);
+        all.sort((a, b) -> Long.compare(b.getValue().hits, a.getValue().hits));
+        List<String> keys = new ArrayList<>(all.size());
+        for (Map.Entry<String, Entry> e : all) {
+            keys.add(e.getKey());
+        }
+        return keys;
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        Entry old = entries.put(key, entry);
+        if (old != null) {
+            size -= old.length;
+        }
+        size += entry.length;
+
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (size > maxBytes && it.hasNext()) {
+            Entry eldest = it.next().getValue();
+            it.remove();
+            size -= eldest.length;
+            evictions.increment();
+        }
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Misses that waited for another request's read of the same file.
+     */
+    public long coalesced() {
+        return loads.coalesced();
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    public synchronized int count() {
+        return entries.size();
+    }
+
+    public String toString() {
+        return "content cache: " + count() + " files, " + size() + " bytes, "
+            + hits() + " hits, " + misses() + " misses (" + coalesced() + " coalesced), " + evictions() + " evictions";
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * DeadlineWatchdog.java
+ */
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Enforces read and write deadlines for the blocking engine. Reads and
+ * writes on a blocking channel have no timeout of their own and sit there
+ * for as long as the client doesn't send or doesn't read, so every
+ * connection gets a Guard that is armed with a deadline while it waits on
+ * the socket. A single daemon thread looks at the armed guards a few times
+ * a second and closes the connection of any that have run past their
+ * deadline, which makes the stuck read or write fail and frees the worker.
+ * An idle keep-alive connection is also closed as soon as connections are
+ * queued for a worker, so it doesn't keep them waiting for a request that
+ * may never come.
+ */
+public class DeadlineWatchdog implements Runnable {
+
+    private static final long CHECK_MILLIS = 250;
+
+    public static class Guard {
+        private final Socket socket;
+        private final BooleanSupplier backlogged; // null if others never wait for this worker
+        private volatile long deadline; // 0 while not waiting on the socket
+        private volatile boolean idle;  // waiting for the next request on a keep-alive connection
+        private volatile boolean expired;
+
+        private Guard(Socket socket, BooleanSupplier backlogged) {
+            this.socket = socket;
+            this.backlogged = backlogged;
+        }
+
+        public void arm(long deadline) {
+            this.idle = false;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Arms the guard for an idle keep-alive connection, which is also
+         * closed as soon as other connections are waiting for a worker.
+         */
+        public void armIdle(long deadline) {
+            this.idle = true;
+            this.deadline = deadline;
+        }
+
+        public void disarm() {
+            deadline = 0;
+        }
+
+        /**
+         * True if other connections are waiting for a worker.
+         */
+        public boolean backlogged() {
+            return backlogged != null && backlogged.getAsBoolean();
+        }
+
+        /**
+         * True if the watchdog closed the connection because a read or
+         * write ran past its deadline.
+         */
+        public boolean expired() {
+            return expired;
+        }
+
+        private void check(long now) {
+            long d = deadline;
+            if (d != 0 && (now > d || idle && backlogged())) {
+                expired = true;
+                deadline = 0;
+                try {
+                    // closing alone doesn't wake a thread blocked sending a
+                    // file with sendfile(), shutting the socket down does
+                    socket.shutdownOutput();
+                }
+                catch (IOException e) {
+                    // already shut down or closed
+                }
+                try {
+                    socket.close();
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private final Set<Guard> guards = ConcurrentHashMap.newKeySet();
+
+    public DeadlineWatchdog() {
+        Thread t = new Thread(this, "deadline-watchdog");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Starts watching a connection, the socket is closed if one of its
+     * reads or writes runs out of time, or if it is idle while backlogged
+     * (may be null) says other connections are waiting for a worker.
+     */
+    public Guard watch(Socket socket, BooleanSupplier backlogged) {
+        Guard guard = new Guard(socket, backlogged);
+        guards.add(guard);
+        return guard;
+    }
+
+    public void unwatch(Guard guard) {
+        guards.remove(guard);
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(CHECK_MILLIS);
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            for (Guard guard : guards) {
+                guard.check(now);
+            }
+        }
+    }
+}
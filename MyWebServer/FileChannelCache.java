@@ -0,0 +1,142 @@
+/*
+ * FileChannelCache.java
+ */
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Open FileChannels for the files being sent from disk, so concurrent and
+ * repeated downloads of the same file share one descriptor instead of
+ * opening and closing it for every response. Channels are only read with
+ * positioned reads and transferTo(), which don't touch the channel's own
+ * position, so any number of responses can use one at the same time.
+ *
+ * Entries are keyed by path and only used while the file's lastModified
+ * still matches. Each response holds a reference while it is written; an
+ * entry that is replaced or evicted is closed once its last reference is
+ * given back. The cache is bounded by the number of entries and evicts the
+ * least recently used first.
+ */
+public class FileChannelCache {
+
+    public static class Handle {
+        public final FileChannel channel;
+        private final long lastModified;
+        private int refs;        // guarded by the cache
+        private boolean retired; // no longer in the cache, close on last release
+
+        private Handle(FileChannel channel, long lastModified) {
+            this.channel = channel;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final int maxEntries;
+    private final LinkedHashMap<String, Handle> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public FileChannelCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * An open channel for file as of lastModified, to be given back with
+     * release() once the response is written.
+     */
+    public Handle acquire(File file, long lastModified) throws IOException {
+        String path = file.getPath();
+        synchronized (this) {
+            Handle h = entries.get(path);
+            if (h != null && h.lastModified == lastModified) {
+                h.refs++;
+                hits.increment();
+                return h;
+            }
+        }
+        misses.increment();
+
+        // open outside the lock, a slow disk shouldn't hold up the hits
+        Handle opened = new Handle(FileChannel.open(file.toPath(), StandardOpenOption.READ), lastModified);
+        Handle h;
+        synchronized (this) {
+            h = entries.get(path);
+            if (h == null || h.lastModified != lastModified) {
+                if (h != null) retire(h);
+                h = opened;
+                opened = null;
+                entries.put(path, h);
+                evict();
+            }
+            h.refs++;
+        }
+        if (opened != null) {
+            // someone else opened it while we were
+            opened.channel.close();
+        }
+        return h;
+    }
+
+    public void release(Handle h) throws IOException {
+        synchronized (this) {
+            h.refs--;
+            if (!h.retired || h.refs > 0) return;
+        }
+        h.channel.close();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Handle>> it = entries.entrySet().iterator();
+        while (entries.size() > maxEntries && it.hasNext()) {
+            Handle eldest = it.next().getValue();
+            it.remove();
+            retire(eldest);
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Marks h, already replaced in or removed from the map, as out of use
+     * and closes it now if no response holds it.
+     */
+    private void retire(Handle h) {
+        h.retired = true;
+        if (h.refs == 0) {
+            try {
+                h.channel.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public synchronized int count() {
+        return entries.size();
+    }
+
+    public String toString() {
+        return "file channel cache: " + count() + " open, " + hits() + " hits, "
+            + misses() + " misses, " + evictions() + " evictions";
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * FileMetadata.java
+ */
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * What a request path resolves to on disk: the file to serve (the file
+ * itself, or index.html for a directory) along with its size and
+ * modification time. file is null when there is nothing to serve.
+ *
+ * Validators are worked out once per file version: the entity tag is built
+ * from the modification time and size, with a "-gz" variant for the gzip
+ * encoded representation. It is weak when we gzip on the fly since the
+ * bytes depend on the compressor. A precompressed sidecar is sent with
+ * the strong "-gz" tag of its own metadata, so replacing the sidecar
+ * changes the tag even when the original file stays the same.
+ */
+public class FileMetadata {
+    // what every path that doesn't exist resolves to
+    public static final FileMetadata NOT_FOUND = new FileMetadata(false, false, null, null);
+
+    public final boolean exists;
+    public final boolean isDirectory;
+    public final File file;
+    public final String canonicalPath;
+    public final long length;
+    public final long lastModified;
+    public final byte[] lastModifiedHeader; // encoded "Last-Modified: ...\r\n" line
+    public final String etag;               // quoted opaque tag, e.g. "15bcb1a1d48-c"
+    public final String gzipEtag;
+    public final byte[] etagHeader;         // encoded "ETag: ...\r\n" lines
+    public final byte[] gzipEtagHeader;
+    public final byte[] weakGzipEtagHeader;
+
+    private FileMetadata(boolean exists, boolean isDirectory, File file, String canonicalPath) {
+        this.exists = exists;
+        this.isDirectory = isDirectory;
+        this.file = file;
+        this.canonicalPath = canonicalPath;
+        this.length = file != null ? file.length() : 0;
+        this.lastModified = file != null ? file.lastModified() : 0;
+        this.lastModifiedHeader = file != null
+            ? MyWebServer.Header.ascii("Last-Modified: " + HttpDate.format(lastModified) + "\r\n")
+            : null;
+
+        String tag = Long.toHexString(lastModified) + "-" + Long.toHexString(length);
+        this.etag = file != null ? "\"" + tag + "\"" : null;
+        this.gzipEtag = file != null ? "\"" + tag + "-gz\"" : null;
+        this.etagHeader = file != null ? MyWebServer.Header.ascii("ETag: " + etag + "\r\n") : null;
+        this.gzipEtagHeader = file != null ? MyWebServer.Header.ascii("ETag: " + gzipEtag + "\r\n") : null;
+        this.weakGzipEtagHeader = file != null ? MyWebServer.Header.ascii("ETag: W/" + gzipEtag + "\r\n") : null;
+    }
+
+    /**
+     * Looks fileName up under dir on disk. A name that leads out of dir
+     * is not found.
+     */
+    public static FileMetadata stat(String dir, String fileName) {
+        try {
+            Path root = Paths.get(dir).toAbsolutePath().normalize();
+            if (!root.resolve(fileName).normalize().startsWith(root)) {
+                return NOT_FOUND;
+            }
+        }
+        catch (InvalidPathException e) {
+            return NOT_FOUND;
+        }
+        File reqFile = new File(dir + '/' + fileName);
+        File file = null;
+
+        if (reqFile.isDirectory()) {
+            String[] files = reqFile.list();
+            for (int i = 0; files != null && i < files.length; i++) {
+                if (files[i].equals("index.html")) {
+                    file = new File(dir + "/" + fileName + "/index.html");
+                }
+            }
+            return new FileMetadata(true, true, file, canonicalPath(file));
+        }
+        if (reqFile.exists()) {
+            return new FileMetadata(true, false, reqFile, canonicalPath(reqFile));
+        }
+        return NOT_FOUND;
+    }
+
+    private static String canonicalPath(File file) {
+        if (file == null) return null;
+        try {
+            return file.getCanonicalPath();
+        }
+        catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * HttpDate.java
+ */
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * HTTP-date formatting (RFC 7231 IMF-fixdate, e.g.
+ * "Sun, 07 May 2017 01:14:41 GMT") and parsing of all three formats
+ * clients may send. Thread safe.
+ */
+public class HttpDate {
+
+    private static final DateTimeFormatter IMF_FIXDATE =
+        DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    // the current time's "Date: ...\r\n" header line, replaced once a second
+    private static class Now {
+        final long second;
+        final byte[] dateLine;
+
+        Now(long second) {
+            this.second = second;
+            this.dateLine = ("Date: " + format(second * 1000) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private static volatile Now now = new Now(System.currentTimeMillis() / 1000);
+
+    // the last date parsed, conditional requests tend to repeat the same one
+    private static class Parsed {
+        final String text;
+        final long millis;
+
+        Parsed(String text, long millis) {
+            this.text = text;
+            this.millis = millis;
+        }
+    }
+
+    private static volatile Parsed lastParsed = new Parsed("", -1);
+
+    private static final String MONTHS = "JanFebMarAprMayJunJulAugSepOctNovDec";
+
+    public static String format(long millis) {
+        return IMF_FIXDATE.format(Instant.ofEpochMilli(millis));
+    }
+
+    /**
+     * The encoded "Date: ...\r\n" header line for the current second. The
+     * returned array is shared and must not be modified.
+     */
+    public static byte[] dateLine() {
+        long second = System.currentTimeMillis() / 1000;
+        Now n = now;
+        if (n.second != second) {
+            // racing threads may both format, either result is correct
+            n = new Now(second);
+            now = n;
+        }
+        return n.dateLine;
+    }
+
+    /**
+     * Parses an HTTP-date in IMF-fixdate (RFC 1123), RFC 850 or asctime
+     * format in a single pass. Returns the time in milliseconds, or -1 if
+     * the value is not a valid date.
+     */
+    public static long parse(String text) {
+        Parsed p = lastParsed;
+        if (p.text.equals(text)) {
+            return p.millis;
+        }
+        long millis = new DateScanner(text).scan();
+        lastParsed = new Parsed(text, millis);
+        return millis;
+    }
+
+    private static class DateScanner {
+        private final String s;
+        private int pos;
+
+        DateScanner(String s) {
+            this.s = s;
+        }
+
+        long scan() {
+            // the weekday name is only used to tell the formats apart
+            int start = pos;
+            while (pos < s.length() && Character.isLetter(s.charAt(pos))) pos++;
+            int weekdayLen = pos - start;
+            if (weekdayLen < 3) return -1;
+
+            int day, month, year, hour, minute, second;
+            if (skip(',')) {
+                if (!skip(' ')) return -1;
+                if (weekdayLen == 3) {
+                    // IMF-fixdate: Sun, 06 Nov 1994 08:49:37 GMT
+                    day = number(1, 2);
+                    if (!skip(' ')) return -1;
+                    month = month();
+                    if (!skip(' ')) return -1;
+                    year = number(4, 4);
+                } else {
+                    // RFC 850: Sunday, 06-Nov-94 08:49:37 GMT
+                    day = number(1, 2);
+                    if (!skip('-')) return -1;
+                    month = month();
+                    if (!skip('-')) return -1;
+                    year = number(2, 2);
+                    if (year >= 0) year += year < 70 ? 2000 : 1900;
+                }
+                if (!skip(' ')) return -1;
+                hour = number(2, 2);
+                if (!skip(':')) return -1;
+                minute = number(2, 2);
+                if (!skip(':')) return -1;
+                second = number(2, 2);
+                if (!skip(' ') || !zone()) return -1;
+            } else {
+                // asctime: Sun Nov  6 08:49:37 1994
+                if (weekdayLen != 3 || !skip(' ')) return -1;
+                month = month();
+                if (!skip(' ')) return -1;
+                skip(' ');
+                day = number(1, 2);
+                if (!skip(' ')) return -1;
+                hour = number(2, 2);
+                if (!skip(':')) return -1;
+                minute = number(2, 2);
+                if (!skip(':')) return -1;
+                second = number(2, 2);
+                if (!skip(' ')) return -1;
+                year = number(4, 4);
+            }
+
+            if (pos != s.length() || day < 1 || month < 0 || year < 0
+                    || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 60
+                    || day > daysInMonth(month, year)) {
+                return -1;
+            }
+            long days = daysFromEpoch(year, month + 1, day);
+            return ((days * 24 + hour) * 60 + minute) * 60000L + Math.min(second, 59) * 1000L;
+        }
+
+        private boolean skip(char c) {
+            if (pos < s.length() && s.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private int number(int minDigits, int maxDigits) {
+            int n = 0;
+            int digits = 0;
+            while (digits < maxDigits && pos < s.length()) {
+                char c = s.charAt(pos);
+                if (c < '0' || c > '9') break;
+                n = n * 10 + (c - '0');
+                digits++;
+                pos++;
+            }
+            return digits >= minDigits ? n : -1;
+        }
+
+        // index of a three letter month name, or -1
+        private int month() {
+            if (pos + 3 > s.length()) return -1;
+            for (int m = 0; m < 12; m++) {
+                if (s.regionMatches(true, pos, MONTHS, m * 3, 3)) {
+                    pos += 3;
+                    return m;
+                }
+            }
+            return -1;
+        }
+
+        private boolean zone() {
+            int rest = s.length() - pos;
+            if ((rest == 3 && (s.startsWith("GMT", pos) || s.startsWith("UTC", pos)))
+                    || (rest == 2 && s.startsWith("UT", pos))) {
+                pos = s.length();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private static int daysInMonth(int month, int year) {
+        if (month == 1) {
+            boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+            return leap ? 29 : 28;
+        }
+        return month == 3 || month == 5 || month == 8 || month == 10 ? 30 : 31;
+    }
+
+    // days since 1970-01-01 of a proleptic Gregorian date, month 1-12
+    private static long daysFromEpoch(long year, int month, int day) {
+        if (month <= 2) year--;
+        long era = Math.floorDiv(year, 400);
+        long yearOfEra = year - era * 400;
+        int shiftedMonth = (month + 9) % 12;
+        long dayOfYear = (153 * shiftedMonth + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * HttpRequest.java
+ */
+
+/**
+ * The parts of a request MyWebServer cares about, filled in by a
+ * RequestParser and handed to a RequestHandler.
+ */
+public class HttpRequest {
+    public String method;
+    public String fileName; // target with the leading '/' stripped
+    public String version;
+    public String ifModifiedSince;
+    public String ifNoneMatch;
+    public String connection;
+    public String range;
+    public String ifRange;
+    public String acceptEncoding;
+    public long contentLength = -1; // of a body we skip, -1 if none was given
+    public String referer;   // only kept for the access log
+    public String userAgent; // only kept for the access log
+
+    void reset() {
+        method = null;
+        fileName = null;
+        version = null;
+        ifModifiedSince = null;
+        ifNoneMatch = null;
+        connection = null;
+        range = null;
+        ifRange = null;
+        acceptEncoding = null;
+        contentLength = -1;
+        referer = null;
+        userAgent = null;
+    }
+
+    /**
+     * HTTP/1.1 connections are persistent unless the client asks to close,
+     * HTTP/1.0 connections only if the client asks for keep-alive.
+     */
+    public boolean wantsKeepAlive() {
+        if (version.equals("HTTP/1.1")) {
+            return !hasConnectionOption("close");
+        }
+        return version.equals("HTTP/1.0") && hasConnectionOption("keep-alive");
+    }
+
+    /**
+     * Whether the Connection header lists option, it is a comma separated
+     * list such as "TE, close".
+     */
+    private boolean hasConnectionOption(String option) {
+        if (connection == null) {
+            return false;
+        }
+        for (String token : connection.split(",")) {
+            if (token.trim().equalsIgnoreCase(option)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether Accept-Encoding allows a gzip response, either by naming gzip
+     * (or x-gzip) or through "*", with a non-zero q-value.
+     */
+    public boolean acceptsGzip() {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        boolean wildcard = false;
+        for (String coding : acceptEncoding.split(",")) {
+            int semi = coding.indexOf(';');
+            String name = (semi < 0 ? coding : coding.substring(0, semi)).trim();
+            boolean acceptable = semi < 0 || qValue(coding.substring(semi + 1)) > 0;
+            if (name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip")) {
+                return acceptable;
+            }
+            if (name.equals("*")) {
+                wildcard = acceptable;
+            }
+        }
+        return wildcard;
+    }
+
+    private static double qValue(String params) {
+        for (String param : params.split(";")) {
+            param = param.trim();
+            if (param.startsWith("q=") || param.startsWith("Q=")) {
+                try {
+                    return Double.parseDouble(param.substring(2));
+                }
+                catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * HttpResponse.java
+ */
+import java.io.File;
+
+/**
+ * A response ready to be written: the encoded header block followed by a
+ * body made of parts, each either a slice of an in-memory array or a region
+ * of file. A plain file is a single region, a multipart/byteranges body
+ * alternates boundaries and regions.
+ */
+public class HttpResponse {
+
+    public static class Part {
+        public final byte[] bytes; // null for a region of the response's file
+        public final long offset;
+        public final long length;
+
+        private Part(byte[] bytes, long offset, long length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public static Part of(byte[] bytes) {
+            return new Part(bytes, 0, bytes.length);
+        }
+
+        public static Part of(byte[] bytes, long offset, long length) {
+            return new Part(bytes, offset, length);
+        }
+
+        public static Part region(long offset, long length) {
+            return new Part(null, offset, length);
+        }
+    }
+
+    private static final Part[] NO_BODY = new Part[0];
+
+    public final int status;
+    public final byte[] head;
+    public final Part[] body;
+    public final File file;
+    public final long lastModified; // of file, which version of it the head describes
+    public final boolean keepAlive;
+
+    private HttpResponse(int status, byte[] head, Part[] body, File file, long lastModified, boolean keepAlive) {
+        this.status = status;
+        this.head = head;
+        this.body = body;
+        this.file = file;
+        this.lastModified = lastModified;
+        this.keepAlive = keepAlive;
+    }
+
+    public static HttpResponse of(MyWebServer.Header header, boolean keepAlive) {
+        return new HttpResponse(header.status(), header.toBytes(), NO_BODY, null, 0, keepAlive);
+    }
+
+    public static HttpResponse of(MyWebServer.Header header, byte[] body, boolean keepAlive) {
+        return new HttpResponse(header.status(), header.toBytes(), new Part[] { Part.of(body) }, null, 0, keepAlive);
+    }
+
+    public static HttpResponse of(MyWebServer.Header header, File file, long lastModified, long length,
+                                  boolean keepAlive) {
+        return new HttpResponse(header.status(), header.toBytes(), new Part[] { Part.region(0, length) },
+                                file, lastModified, keepAlive);
+    }
+
+    public static HttpResponse of(MyWebServer.Header header, Part[] body, File file, long lastModified,
+                                  boolean keepAlive) {
+        return new HttpResponse(header.status(), header.toBytes(), body, file, lastModified, keepAlive);
+    }
+
+    public long bodyLength() {
+        long length = 0;
+        for (Part part : body) {
+            length += part.length;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * LatencyHistogram.java
+ */
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of non-negative values, usually latencies in
+ * microseconds. Values below 128 get a bucket each, above that every power
+ * of two is split into 64 buckets, so any recorded value is reported within
+ * about 1.5% of what was measured while the whole range of a long fits in
+ * a few thousand counters. Safe to record into from several threads; a
+ * histogram many threads record into at once can be split into stripes,
+ * each thread counting into its own, the same way LongAdder spreads a hot
+ * counter.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 6;
+    private static final int SUB_COUNT = 1 << SUB_BITS; // buckets per power of two
+    private static final int LINEAR = 2 * SUB_COUNT;    // values with a bucket each
+    private static final int BUCKETS = LINEAR + (64 - SUB_BITS - 1) * SUB_COUNT;
+
+    private final AtomicLongArray[] stripes;
+    private final int mask;
+
+    public LatencyHistogram() {
+        this(1);
+    }
+
+    /**
+     * A histogram split into at least the given number of stripes, rounded
+     * up to a power of two.
+     */
+    public LatencyHistogram(int stripes) {
+        int n = 1;
+        while (n < stripes) n <<= 1;
+        this.stripes = new AtomicLongArray[n];
+        for (int i = 0; i < n; i++) {
+            this.stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+        this.mask = n - 1;
+    }
+
+    public void record(long value) {
+        AtomicLongArray counts = mask == 0 ? stripes[0] : stripes[(int) Thread.currentThread().getId() & mask];
+        counts.incrementAndGet(bucket(Math.max(0, value)));
+    }
+
+    /**
+     * Adds every value recorded in other to this histogram.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = other.count(i);
+            if (n != 0) stripes[0].addAndGet(i, n);
+        }
+    }
+
+    public void reset() {
+        for (AtomicLongArray counts : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts.set(i, 0);
+            }
+        }
+    }
+
+    public long count() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += count(i);
+        }
+        return total;
+    }
+
+    public long max() {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (count(i) != 0) return highest(i);
+        }
+        return 0;
+    }
+
+    public double mean() {
+        long total = 0;
+        double sum = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = count(i);
+            if (n == 0) continue;
+            total += n;
+            sum += n * (lowest(i) + highest(i)) / 2.0;
+        }
+        return total == 0 ? 0 : sum / total;
+    }
+
+    /**
+     * The value at the given percentile (0 to 100), reported as the highest
+     * value its bucket can hold so the percentiles never look better than
+     * what was measured.
+     */
+    public long percentile(double percentile) {
+        long total = count();
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += count(i);
+            if (seen >= rank) return highest(i);
+        }
+        return max();
+    }
+
+    private long count(int bucket) {
+        long n = 0;
+        for (AtomicLongArray counts : stripes) {
+            n += counts.get(bucket);
+        }
+        return n;
+    }
+
+    static int bucket(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return LINEAR + (shift - 1) * SUB_COUNT + (int) (value >>> shift) - SUB_COUNT;
+    }
+
+    static long lowest(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        int shift = (bucket - LINEAR) / SUB_COUNT + 1;
+        long sub = (bucket - LINEAR) % SUB_COUNT + SUB_COUNT;
+        return sub << shift;
+    }
+
+    static long highest(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        int shift = (bucket - LINEAR) / SUB_COUNT + 1;
+        return lowest(bucket) + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * MetadataCache.java
+ */
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Remembers what request paths under the document root resolve to, so the
+ * hot path doesn't have to stat the disk. Every directory under the root is
+ * registered with a WatchService, and a background thread drops the
+ * affected entries whenever something in a directory changes.
+ *
+ * Paths that don't exist are remembered apart from the others, in a
+ * bounded set of their own, so a scanner probing thousands of made-up
+ * paths can't push the real files out of the cache; they are dropped the
+ * same way when something is created where they point.
+ *
+ * Paths that resolve outside the document root, through "..", are not
+ * found. Directories we can't watch (unreadable, or past the system's
+ * limit on watches) are served as if the cache were off: every lookup
+ * under them goes to the disk.
+ */
+public class MetadataCache implements Runnable {
+    private final String dir;
+    private final Path root;
+    private final int maxEntries;
+    private final int maxMissing;
+    private final WatchService watcher;
+    // directories, and everything below them, we couldn't register
+    private final List<Path> unwatched = new CopyOnWriteArrayList<>();
+    private final LinkedHashMap<Path, FileMetadata> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // paths known not to exist, least recently asked for first
+    private final LinkedHashMap<Path, Boolean> missing = new LinkedHashMap<>(16, 0.75f, true);
+
+    // bumped on every invalidation so a lookup racing with one doesn't
+    // put back what was just dropped
+    private long generation;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder missingHits = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * Caches up to maxEntries paths that exist and, separately, up to
+     * maxMissing that don't (0 not to remember those).
+     */
+    public MetadataCache(String dir, int maxEntries, int maxMissing) throws IOException {
+        this.dir = dir;
+        this.root = Paths.get(dir).toAbsolutePath().normalize();
+        this.maxEntries = maxEntries;
+        this.maxMissing = maxMissing;
+        this.watcher = FileSystems.getDefault().newWatchService();
+        registerAll(root);
+        if (!unwatched.isEmpty()) {
+            System.err.println("Could not watch " + unwatched.size() + " paths under " + dir
+                               + ", looking them up on disk instead");
+        }
+
+        Thread t = new Thread(this, "metadata-watcher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public FileMetadata lookup(String fileName) {
+        Path path;
+        try {
+            path = root.resolve(fileName).normalize();
+        }
+        catch (InvalidPathException e) {
+            // a NUL or the like, no file can have that name
+            return FileMetadata.NOT_FOUND;
+        }
+        if (!path.startsWith(root)) {
+            return FileMetadata.NOT_FOUND;
+        }
+        if (!unwatched.isEmpty() && isUnwatched(path)) {
+            return FileMetadata.stat(dir, fileName);
+        }
+
+        long gen;
+        synchronized (this) {
+            FileMetadata meta = entries.get(path);
+            if (meta != null) {
+                hits.increment();
+                return meta;
+            }
+            if (missing.get(path) != null) {
+                hits.increment();
+                missingHits.increment();
+                return FileMetadata.NOT_FOUND;
+            }
+            gen = generation;
+        }
+        misses.increment();
+
+        FileMetadata meta = FileMetadata.stat(dir, fileName);
+        synchronized (this) {
+            if (gen == generation) {
+                if (meta.exists) {
+                    put(entries, path, meta, maxEntries);
+                } else if (maxMissing > 0) {
+                    put(missing, path, Boolean.TRUE, maxMissing);
+                }
+            }
+        }
+        return meta;
+    }
+
+    private static <V> void put(LinkedHashMap<Path, V> map, Path path, V value, int max) {
+        map.put(path, value);
+        if (map.size() > max) {
+            Iterator<Path> it = map.keySet().iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Watches for changes and drops the cached entries they affect.
+     */
+    public void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            }
+            catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            // every change in the batch is dropped in one pass over the cache
+            Path watchedDir = (Path) key.watchable();
+            List<Path> changed = new ArrayList<>();
+            boolean overflow = false;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    overflow = true;
+                    continue;
+                }
+
+                Path child = watchedDir.resolve((Path) event.context());
+                changed.add(child);
+
+                if (event.kind() == ENTRY_CREATE && Files.isDirectory(child)) {
+                    // anything created in it before it is registered goes
+                    // unseen, but is dropped with the rest of the batch
+                    registerAll(child);
+                }
+            }
+            if (overflow) {
+                // we lost track of what changed, start over
+                invalidateAll();
+            } else if (!changed.isEmpty()) {
+                invalidate(watchedDir, changed);
+            }
+            key.reset();
+        }
+    }
+
+    /**
+     * Drops the entries for the changed paths and everything below them,
+     * and for the directory they live in since that may have gained or
+     * lost its index. Missing paths at or below a changed path are
+     * forgotten as well.
+     *
+     * Lookups need the cache's lock, so it is only held to copy the keys
+     * and to remove the stale ones; matching them runs without it. The
+     * generation is bumped first so a lookup that stats the old state
+     * while we match doesn't put it back afterwards.
+     */
+    private void invalidate(Path parent, List<Path> changed) {
+        List<Path> paths;
+        List<Path> missingPaths;
+        synchronized (this) {
+            generation++;
+            invalidations.increment();
+            paths = new ArrayList<>(entries.keySet());
+            missingPaths = new ArrayList<>(missing.keySet());
+        }
+
+        List<Path> stale = new ArrayList<>();
+        for (Path path : paths) {
+            if (path.equals(parent) || under(path, changed)) stale.add(path);
+        }
+        // something appeared where a missing path points, or above it
+        List<Path> found = new ArrayList<>();
+        for (Path path : missingPaths) {
+            if (under(path, changed)) found.add(path);
+        }
+
+        if (stale.isEmpty() && found.isEmpty()) return;
+        synchronized (this) {
+            for (Path path : stale) entries.remove(path);
+            for (Path path : found) missing.remove(path);
+        }
+    }
+
+    private static boolean under(Path path, List<Path> changed) {
+        for (Path c : changed) {
+            if (path.startsWith(c)) return true;
+        }
+        return false;
+    }
+
+    private synchronized void invalidateAll() {
+        generation++;
+        invalidations.increment();
+        entries.clear();
+        missing.clear();
+    }
+
+    /**
+     * Registers start and every directory below it. One we can't register
+     * or list is put on the unwatched list instead of failing the rest.
+     */
+    private void registerAll(Path start) {
+        try {
+            Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+                    try {
+                        d.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                    }
+                    catch (IOException e) {
+                        unwatched.add(d);
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    unwatched.add(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path d, IOException e) {
+                    // listing it broke off, some of what's below went unseen
+                    if (e != null) unwatched.add(d);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        catch (IOException e) {
+            // the visitor doesn't throw, but be safe
+            unwatched.add(start);
+        }
+    }
+
+    private boolean isUnwatched(Path path) {
+        for (Path d : unwatched) {
+            if (path.startsWith(d)) return true;
+        }
+        return false;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Lookups answered by the set of missing paths.
+     */
+    public long missingHits() {
+        return missingHits.sum();
+    }
+
+    public synchronized int missingCount() {
+        return missing.size();
+    }
+
+    public long invalidations() {
+        return invalidations.sum();
+    }
+
+    public synchronized int count() {
+        return entries.size();
+    }
+
+    public String toString() {
+        return "metadata cache: " + count() + " paths, " + missingCount() + " missing paths, " + hits() + " hits ("
+            + missingHits() + " missing), " + misses() + " misses, " + invalidations() + " invalidations";
+    }
+}
@@ -1,51 +1,101 @@
 /*
  * MyWebServer.java
  */
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.FileInputStream;
 import java.io.File;
-import java.util.StringTokenizer;
-import java.util.Date;
-import java.text.SimpleDateFormat;
-import java.text.ParseException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 
 public class MyWebServer {
 
-    private static String badRequestHTML = "<!DOCTYPE html><html lang=en><title>400 - Bad Request</title><style>.big{font-size:10em}.red{color:red}.center{text-align:center}</style><div class='big center red'>400 - Bad Request</div>";
-    private static String fileNotFoundHTML= "<!DOCTYPE html><html lang=en><title>404 - File Not Found</title><style>.big{font-size:10em}.red{color:red}.center{text-align:center}</style><div class='big center red'>404 - Not Found</div>";
-    private static String notImplementedHTML= "<!DOCTYPE html><html lang=en><title>501 - Not Implemented</title><style>.big{font-size:10em}.red{color:red}.center{text-align:center}</style><div class='big center red'>501 - Not Implemented</div>";
+    static final String badRequestHTML = "<!DOCTYPE html><html lang=en><title>400 - Bad Request</title><style>.big{font-size:10em}.red{color:red}.center{text-align:center}</style><div class='big center red'>400 - Bad Request</div>";
+    static final String fileNotFoundHTML= "<!DOCTYPE html><html lang=en><title>404 - File Not Found</title><style>.big{font-size:10em}.red{color:red}.center{text-align:center}</style><div class='big center red'>404 - Not Found</div>";
+    static final String notImplementedHTML= "<!DOCTYPE html><html lang=en><title>501 - Not Implemented</title><style>.big{font-size:10em}.red{color:red}.center{text-align:center}</style><div class='big center red'>501 - Not Implemented</div>";
+    static final String internalServerErrorHTML= "<!DOCTYPE html><html lang=en><title>500 - Internal Server Error</title><style>.big{font-size:10em}.red{color:red}.center{text-align:center}</style><div class='big center red'>500 - Internal Server Error</div>";
+    static final String serviceUnavailableHTML= "<!DOCTYPE html><html lang=en><title>503 - Service Unavailable</title><style>.big{font-size:10em}.red{color:red}.center{text-align:center}</style><div class='big center red'>503 - Service Unavailable</div>";
+
+    // the error pages encoded once, sent as is
+    static final byte[] badRequestBytes = Header.ascii(badRequestHTML);
+    static final byte[] fileNotFoundBytes = Header.ascii(fileNotFoundHTML);
+    static final byte[] notImplementedBytes = Header.ascii(notImplementedHTML);
+    static final byte[] internalServerErrorBytes = Header.ascii(internalServerErrorHTML);
+    static final byte[] serviceUnavailableBytes = Header.ascii(serviceUnavailableHTML);
 
     public static void main(String[] args) throws IOException{
-        if (args.length != 2) {
-            System.err.println("Usage: java MyWebServer <port number> <directory>");
+        ServerConfig config = null;
+        try {
+            config = ServerConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("server: " + e.getMessage());
+            System.err.println(ServerConfig.USAGE);
             System.exit(1);
         }
-
-        // Parse port numbers
-        int port = -1;
+        int port = config.port;
+        ServerContext context = null;
         try {
-            port = Integer.parseInt(args[0]);
-            if (port < 0) throw new NumberFormatException("server: Failed to resolve port number.");
-        } catch (NumberFormatException e) {
-            System.err.println("server: Invalid port number: " + args[0]);
+            context = new ServerContext(config);
+        }
+        catch (IOException e) {
+            System.err.println("server: " + e.getMessage());
             System.exit(1);
         }
-        String dir = args[1];
+        CacheWarmer warmer = null;
+        if (context.contentCache != null && (config.warmUp > 0 || config.hotPaths != null)) {
+            try {
+                warmer = new CacheWarmer(context.contentCache, config.dir, config.cacheMaxFile);
+            }
+            catch (IOException e) {
+                System.err.println("server: Could not resolve directory " + config.dir + ": " + e.getMessage());
+                System.exit(1);
+            }
+            if (config.warmUp > 0) {
+                warmer.warm(config.warmUp, config.hotPaths);
+            }
+        }
+        ServerContext ctx = context;
+        CacheWarmer w = warmer;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (w != null && ctx.config.hotPaths != null) w.saveHotPaths(ctx.config.hotPaths);
+            if (ctx.contentCache != null) System.out.println(ctx.contentCache);
+            if (ctx.compressionCache != null) System.out.println(ctx.compressionCache);
+            if (ctx.metadataCache != null) System.out.println(ctx.metadataCache);
+            if (ctx.fileChannels != null) System.out.println(ctx.fileChannels);
+            System.out.println(ctx.buffers);
+            System.out.println(ctx.stats);
+            if (ctx.accessLog != null) {
+                ctx.accessLog.close();
+                System.out.println(ctx.accessLog);
+            }
+        }));
+        if (config.statsInterval > 0) {
+            context.stats.startLogging(config.statsInterval);
+        }
 
         System.out.println("Server is listening on port :" + port);
         System.out.println("---------------------------------");
 
-        ServerSocket serverSocket = null;
-
-        // creating the listening socket
+        ServerSocketChannel[] listeners = null;
         try {
-            serverSocket = new ServerSocket(port);
+            listeners = openListeners(config);
         }
         catch (IOException e) {
             System.err.println("Could not open socket on port " + port);
@@ -53,209 +103,441 @@ public class MyWebServer {
             System.exit(1);
         }
 
+        if (config.engine.equals("nio")) {
+            NioServer.serve(context, listeners);
+            return;
+        }
 
-        // wait for a connectiona and then accept it
-        while (true) {
-            try (Socket socket = serverSocket.accept()){
-                HTTPConnection connection = new HTTPConnection(socket, dir);
-                connection.run();
-            }
-            catch (IOException e) {
-                e.printStackTrace();
+        // every acceptor hands its connections to its own group of workers,
+        // the last one runs on this thread
+        DeadlineWatchdog watchdog = new DeadlineWatchdog();
+        for (int i = 0; i < listeners.length; i++) {
+            ServerSocket serverSocket = listeners[i].socket();
+            String name = "acceptor-" + (i + 1);
+            ExecutorService workers = newWorkers(config, i, listeners.length);
+            if (i == listeners.length - 1) {
+                accept(serverSocket, workers, ctx, watchdog);
+            } else {
+                Thread t = new Thread(() -> accept(serverSocket, workers, ctx, watchdog), name);
+                t.setDaemon(true);
+                t.start();
             }
         }
     }
 
-    public static class HTTPConnection implements Runnable {
-        private Socket socket;
-        private String dir;
-        private SimpleDateFormat RFC822DateFormat = new SimpleDateFormat("EEE, d MMM yyyy hh:mm:ss zzz");
-        private SimpleDateFormat RFC850DateFormat = new SimpleDateFormat("EEEE, d-MMM-yy hh:mm:ss zzz");
-        private SimpleDateFormat ANSICDateFormat = new SimpleDateFormat("EEE MMM d hh:mm:ss yyyy");
-
-        HTTPConnection(Socket socket, String dir) {
-            this.socket = socket;
-            this.dir = dir;
+    /**
+     * Opens the listening channels, one per acceptor. Where the platform
+     * has SO_REUSEPORT each acceptor gets a socket of its own bound to the
+     * same port and the kernel spreads incoming connections across them;
+     * otherwise all the acceptors share one socket. Accepted sockets are
+     * opened through a channel so they have one we can transferTo() file
+     * contents into.
+     */
+    static ServerSocketChannel[] openListeners(ServerConfig config) throws IOException {
+        ServerSocketChannel[] listeners = new ServerSocketChannel[config.acceptors];
+        ServerSocketChannel first = ServerSocketChannel.open();
+        boolean reusePort = config.acceptors > 1
+            && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        for (int i = 0; i < listeners.length; i++) {
+            if (i == 0 || reusePort) {
+                listeners[i] = i == 0 ? first : ServerSocketChannel.open();
+                if (reusePort) listeners[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                listeners[i].bind(new InetSocketAddress(config.port), config.backlog);
+            } else {
+                listeners[i] = first;
+            }
+        }
+        if (config.acceptors > 1) {
+            System.out.println(config.acceptors + " acceptors "
+                               + (reusePort ? "with SO_REUSEPORT" : "sharing one socket"));
         }
+        return listeners;
+    }
 
-        public void run() {
+    /**
+     * Accept loop: waits for a connection, accepts it and hands it off to
+     * a worker, or sheds it with a 503 if we are already serving all we
+     * can. workers is null to handle each connection on this thread.
+     */
+    static void accept(ServerSocket serverSocket, ExecutorService workers, ServerContext context,
+                       DeadlineWatchdog watchdog) {
+        ConnectionLimiter limiter = context.limiter;
+        // an idle keep-alive connection gives its worker up to connections
+        // queued behind it
+        BooleanSupplier backlogged = workers instanceof ThreadPoolExecutor
+            ? () -> !((ThreadPoolExecutor) workers).getQueue().isEmpty()
+            : null;
+        while (true) {
             try {
-                Header header = new Header();
-
-                BufferedReader bin = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                OutputStream ostream = socket.getOutputStream();
-                String[] req = bin.readLine().split(" ");
-                String reqType;
-                String fileName;
-                try {
-                    reqType = req[0];
-                    fileName = req[1].substring(1);
+                Socket socket = serverSocket.accept();
+                if (!limiter.tryAcquire()) {
+                    limiter.reject(socket.getChannel());
+                    continue;
                 }
-                catch (Exception e) {
-                    ostream.write(header.setStatus("HTTP/1.1 400 Bad Request").toString().getBytes());
-                    ostream.write(badRequestHTML.getBytes());
-                    return;
+                HTTPConnection connection = new HTTPConnection(socket, context, watchdog, backlogged);
+                if (workers == null) {
+                    connection.run();
+                    continue;
                 }
-
-                if (!reqType.equals("GET") && !reqType.equals("HEAD")) {
-                    header.setStatus("HTTP/1.1 501 Not Implemented");
-                    ostream.write(header.toString().getBytes());
-                    ostream.write(notImplementedHTML.getBytes());
-                    return;
+                try {
+                    workers.execute(connection);
                 }
-
-                // try to open file
-                File reqFile = new File(this.dir + '/' + fileName);
-                File file = null;
-
-                // file not found
-                if (!reqFile.exists()) {
-                    header.setStatus("HTTP/1.1 404 Not Found");
-                    ostream.write(header.toString().getBytes());
-                    ostream.write(fileNotFoundHTML.getBytes());
-                    return;
+                catch (RejectedExecutionException e) {
+                    // every worker is busy and the pending queue is full
+                    limiter.release();
+                    limiter.reject(socket.getChannel());
                 }
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
-                if (reqFile.isDirectory()) {
-                    String[] files = reqFile.list();
-                    for (int i = 0; i < files.length; i++) {
-                        if (files[i].equals("index.html")) {
-                            file = new File(this.dir + "/" + fileName + "/index.html");
-                        }
-                    }
-                } else {
-                    file = reqFile;
-                }
+    /**
+     * Acceptor group's share of a total split between groups, at least one.
+     */
+    static int share(int total, int group, int groups) {
+        return Math.max(1, total / groups + (group < total % groups ? 1 : 0));
+    }
 
-                // user requested a directory that doesn't contain index.html
-                if (file == null) {
-                    header.setStatus("HTTP/1.1 404 Not Found");
-                    ostream.write(header.toString().getBytes());
-                    ostream.write(fileNotFoundHTML.getBytes());
-                    return;
+    /**
+     * Builds the executor the connections of one of groups acceptors are
+     * run on, or null when connections should be handled inline on the
+     * accept thread. The pool's threads and pending queue are this
+     * group's share of --threads and --max-pending.
+     */
+    static ExecutorService newWorkers(ServerConfig config, int group, int groups) {
+        String name = groups > 1 ? "http-worker-" + (group + 1) + "-" : "http-worker-";
+        switch (config.mode) {
+            case "serial":
+                return null;
+            case "virtual":
+                // Executors.newVirtualThreadPerTaskExecutor() only exists on
+                // JDK 21+, look it up reflectively so we still build on older JDKs
+                try {
+                    Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                    return (ExecutorService) m.invoke(null);
                 }
+                catch (ReflectiveOperationException e) {
+                    System.err.println("server: virtual threads are not available on this JVM, using a cached thread pool");
+                    return Executors.newCachedThreadPool(workerThreadFactory(name));
+                }
+            default:
+                // like Executors.newFixedThreadPool() but with a bounded queue,
+                // so a burst of connections is turned away instead of waiting
+                // for a worker until the clients give up
+                int threads = share(config.threads, group, groups);
+                return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                                              new ArrayBlockingQueue<>(share(config.maxPending, group, groups)),
+                                              workerThreadFactory(name));
+        }
+    }
 
-                Date lastModified = new Date(file.lastModified());
-
-                String headerLine = bin.readLine();
+    private static ThreadFactory workerThreadFactory(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
 
-                String ifModifiedSinceVal = null;
+    static void closeQuietly(Socket socket) {
+        if (socket == null) return;
+        try {
+            socket.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-                try {
-                    while (!headerLine.equals("")) {
-                        int colonIdx = headerLine.indexOf(":");
-                        String field = headerLine.substring(0, colonIdx);
-                        String val = headerLine.substring(colonIdx + 1).trim();
-                        if (field.equalsIgnoreCase("If-Modified-Since")) {
-                            ifModifiedSinceVal = val;
-                        }
-                        headerLine = bin.readLine();
-                    }
-                    if (ifModifiedSinceVal != null) {
-                        // Get the date according to any of the acceptable http 1 headers
-                        Date ifModifiedSinceDate = null;
+    public static class HTTPConnection implements Runnable {
+        private Socket socket;
+        private int keepAliveTimeout;
+        private int headerTimeout;
+        private int maxRequests;
+        private RequestHandler handler;
+        private RequestParser parser;
+        private ResponseWriter writer;
+        private ServerStats stats;
+        private AccessLog accessLog;
+        private ConnectionLimiter limiter;
+        private BufferPool buffers;
+        private DeadlineWatchdog watchdog;
+        private DeadlineWatchdog.Guard guard;
+        private BooleanSupplier backlogged;
+        // when the connection was accepted, the first request's head is
+        // due within the header timeout of it even if it waits for a worker
+        private long accepted = System.currentTimeMillis();
+
+        HTTPConnection(Socket socket, ServerContext context, DeadlineWatchdog watchdog, BooleanSupplier backlogged) {
+            ServerConfig config = context.config;
+            this.socket = socket;
+            this.keepAliveTimeout = config.keepAliveTimeout;
+            this.headerTimeout = config.headerTimeout;
+            this.maxRequests = config.maxRequests;
+            this.handler = new RequestHandler(context);
+            this.parser = new RequestParser(config.maxHeaderSize, context.accessLog != null);
+            this.writer = new ResponseWriter(context);
+            this.stats = context.stats;
+            this.accessLog = context.accessLog;
+            this.limiter = context.limiter;
+            this.buffers = context.buffers;
+            this.watchdog = watchdog;
+            this.backlogged = backlogged;
+        }
 
-                        try {
-                            ifModifiedSinceDate = RFC822DateFormat.parse(ifModifiedSinceVal);
-                        }
-                        catch (ParseException e) {
-                            ifModifiedSinceDate = null;
-                        }
-                        if (ifModifiedSinceDate == null) {
-                            try {
-                                ifModifiedSinceDate = RFC850DateFormat.parse(ifModifiedSinceVal);
-                            }
-                            catch (ParseException e) {
-                                ifModifiedSinceDate = null;
+        public void run() {
+            stats.connectionOpened();
+            guard = watchdog.watch(socket, backlogged);
+            boolean readingHead = true;
+            boolean reading = false;
+            // the buffer is shared by every request on this connection so
+            // pipelined requests read together with the previous one are not lost
+            ByteBuffer in = buffers.acquire();
+            try {
+                String remote = accessLog != null ? socket.getInetAddress().getHostAddress() : null;
+                // requests are read, and responses written, through the
+                // channel so both go straight to and from pooled direct buffers
+                SocketChannel channel = socket.getChannel();
+                in.flip();
+
+                // the first request has to arrive within the header timeout
+                long headDeadline = accepted + headerTimeout * 1000L;
+                boolean late = false;
+                int served = 0;
+                boolean keepAlive = true;
+                while (keepAlive) {
+                    parser.reset();
+                    int result;
+                    while ((result = parser.parse(in)) == RequestParser.NEED_MORE) {
+                        // an idle connection waits for its next request up to the
+                        // keep-alive timeout, but once a request has started its
+                        // whole head has to arrive by the deadline, however
+                        // slowly the client trickles it in
+                        readingHead = served == 0 || parser.started();
+                        long now = System.currentTimeMillis();
+                        if (readingHead) {
+                            if (headDeadline == 0) headDeadline = now + headerTimeout * 1000L;
+                            if (now >= headDeadline) {
+                                // what arrived in time still counts, a connection that
+                                // sat in the queue may have sent its whole request, but
+                                // we won't wait for more
+                                if (late) throw new SocketTimeoutException("request head timed out");
+                                late = true;
+                                in.clear();
+                                channel.configureBlocking(false);
+                                int read = channel.read(in);
+                                channel.configureBlocking(true);
+                                in.flip();
+                                if (read < 0) break;
+                                continue;
                             }
+                            guard.arm(headDeadline);
+                        } else if (guard.backlogged()) {
+                            // others are waiting for a worker, don't hold
+                            // this one for a request that may never come
+                            break;
+                        } else {
+                            guard.armIdle(now + keepAliveTimeout * 1000L);
                         }
-                        if (ifModifiedSinceDate == null) // this will freely throw and return a 400
-                            ifModifiedSinceDate = ANSICDateFormat.parse(ifModifiedSinceVal);
-
-                        if (ifModifiedSinceDate.after(lastModified)) {
-                            header.setStatus("HTTP/1.1 304 Not Modified")
-                                .setLastModified(lastModified)
-                                .setContentLength(file.length());
-                            ostream.write(header.toString().getBytes());
-                            return;
-                        }
+                        in.clear();
+                        reading = true;
+                        int read = channel.read(in);
+                        reading = false;
+                        guard.disarm();
+                        if (read < 0) break;
+                        in.flip();
                     }
-                }
-                catch (Exception e) {
-                    ostream.write(header.setStatus("HTTP/1.1 400 Bad Request").toString().getBytes());
-                    ostream.write(badRequestHTML.getBytes());
-                    return;
-                }
-
-                // write response header
-                header.setStatus("HTTP/1.1 200 OK")
-                    .setLastModified(lastModified)
-                    .setContentLength(file.length());
-                ostream.write(header.toString().getBytes());
-
-                if (reqType.equals("GET")) {
-                    FileInputStream fis = new FileInputStream(file);
-                    byte[] data = new byte[4096];
-                    for (int read; (read = fis.read(data)) > -1;) {
-                        ostream.write(data, 0, read);
+                    headDeadline = 0;
+                    if (result == RequestParser.NEED_MORE) {
+                        // client closed the connection, maybe halfway through a request
+                        if (parser.started()) send(handler.badRequest(), channel);
+                        break;
                     }
+                    served++;
+
+                    long start = System.nanoTime();
+                    HttpResponse response = result == RequestParser.DONE
+                        ? handler.handle(parser.request(), maxRequests - served)
+                        : handler.badRequest();
+                    stats.handled(start);
+                    send(response, channel);
+                    stats.sent(response, start);
+                    if (accessLog != null) {
+                        accessLog.log(remote, result == RequestParser.DONE ? parser.request() : null, response);
+                    }
+                    keepAlive = response.keepAlive;
                 }
             }
-            catch (IndexOutOfBoundsException e) {
-                System.err.println(e.getMessage());
-                e.printStackTrace();
+            catch (SocketTimeoutException e) {
+                // the client was too slow to send its request
+                stats.headerTimeout();
             }
             catch (IOException e) {
-                System.err.println(e.getMessage());
-                e.printStackTrace();
-            }
-            finally {
-                try {
-                    socket.close();
-                }
-                catch (IOException e) {
+                if (guard.expired()) {
+                    // the watchdog closed the socket on a client too slow to
+                    // send its request or read its response, or on an idle
+                    // keep-alive connection
+                    if (!reading) {
+                        stats.writeTimeout();
+                    } else if (readingHead) {
+                        stats.headerTimeout();
+                    }
+                } else {
+                    System.err.println(e.getMessage());
                     e.printStackTrace();
                 }
             }
+            finally {
+                watchdog.unwatch(guard);
+                closeQuietly(socket);
+                buffers.release(in);
+                stats.connectionClosed();
+                limiter.release();
+            }
+        }
+
+        /**
+         * Writes a response, with the watchdog ready to close the connection
+         * if the client doesn't take it in time.
+         */
+        private void send(HttpResponse response, SocketChannel channel) throws IOException {
+            guard.arm(writer.deadline(response));
+            try {
+                writer.writeFully(response, channel);
+            }
+            finally {
+                guard.disarm();
+            }
         }
     }
 
+    /**
+     * Builds a response header straight into bytes. Status lines and fixed
+     * header lines are encoded once, the Date line once a second, and each
+     * thread reuses the same scratch buffer for every header it builds.
+     */
     public static class Header {
-        private StringBuilder header;
-        private SimpleDateFormat HTTPDateFormat;
-        private Date currentDate;
-        private final String serverName = "Young Money Cache Money: The Server";
+        public static final byte[] OK = ascii("HTTP/1.1 200 OK\r\n");
+        public static final byte[] PARTIAL_CONTENT = ascii("HTTP/1.1 206 Partial Content\r\n");
+        public static final byte[] NOT_MODIFIED = ascii("HTTP/1.1 304 Not Modified\r\n");
+        public static final byte[] BAD_REQUEST = ascii("HTTP/1.1 400 Bad Request\r\n");
+        public static final byte[] NOT_FOUND = ascii("HTTP/1.1 404 Not Found\r\n");
+        public static final byte[] RANGE_NOT_SATISFIABLE = ascii("HTTP/1.1 416 Range Not Satisfiable\r\n");
+        public static final byte[] INTERNAL_SERVER_ERROR = ascii("HTTP/1.1 500 Internal Server Error\r\n");
+        public static final byte[] NOT_IMPLEMENTED = ascii("HTTP/1.1 501 Not Implemented\r\n");
+        public static final byte[] SERVICE_UNAVAILABLE = ascii("HTTP/1.1 503 Service Unavailable\r\n");
+
+        public static final byte[] ACCEPT_RANGES = ascii("Accept-Ranges: bytes\r\n");
+        public static final byte[] CONTENT_ENCODING_GZIP = ascii("Content-Encoding: gzip\r\n");
+        public static final byte[] VARY_ACCEPT_ENCODING = ascii("Vary: Accept-Encoding\r\n");
+
+        static final byte[] SERVER = ascii("Server: Young Money Cache Money: The Server\r\n");
+        private static final byte[] LAST_MODIFIED = ascii("Last-Modified: ");
+        private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+        private static final byte[] CONTENT_RANGE = ascii("Content-Range: bytes ");
+        private static final byte[] KEEP_ALIVE = ascii("Connection: keep-alive\r\nKeep-Alive: timeout=");
+        private static final byte[] KEEP_ALIVE_MAX = ascii(", max=");
+        private static final byte[] CLOSE = ascii("Connection: close\r\n");
+        private static final byte[] CRLF = ascii("\r\n");
+        private static final byte[] DASH = ascii("-");
+        private static final byte[] SLASH = ascii("/");
+
+        private static final ThreadLocal<Header> local = ThreadLocal.withInitial(Header::new);
+
+        private byte[] buf = new byte[256];
+        private int len;
+        private int status;
+
+        private Header() {
+        }
+
+        /**
+         * Starts a new header on this thread's buffer, discarding whatever
+         * header the thread was building before.
+         */
+        public static Header start(byte[] status) {
+            Header header = local.get();
+            header.len = 0;
+            // status lines all start "HTTP/1.1 NNN"
+            header.status = (status[9] - '0') * 100 + (status[10] - '0') * 10 + (status[11] - '0');
+            return header.add(status)
+                .add(HttpDate.dateLine())
+                .add(SERVER);
+        }
 
-        public Header() {
-            header = new StringBuilder();
-            HTTPDateFormat = new SimpleDateFormat("EEE, d MMM yyyy hh:mm:ss zzz");
-            currentDate = new Date();
+        /**
+         * Appends an already encoded "Field: value\r\n" line.
+         */
+        public Header add(byte[] line) {
+            ensure(line.length);
+            System.arraycopy(line, 0, buf, len, line.length);
+            len += line.length;
+            return this;
+        }
 
-            // set HTTP-date
-            header.append("HTTP-date: " + HTTPDateFormat.format(currentDate) + "\r\n");
+        public Header setLastModified(long lastModified) {
+            return add(LAST_MODIFIED).add(ascii(HttpDate.format(lastModified))).add(CRLF);
+        }
+
+        public Header setContentLength(long contentLength) {
+            return add(CONTENT_LENGTH).addNumber(contentLength).add(CRLF);
+        }
 
-            // set Server
-            header.append("Server: " + serverName + " \r\n");
+        public Header setContentRange(long first, long last, long length) {
+            return add(CONTENT_RANGE).addNumber(first).add(DASH).addNumber(last).add(SLASH).addNumber(length).add(CRLF);
+        }
+
+        public Header setConnection(boolean keepAlive, int timeout, int max) {
+            if (keepAlive) {
+                return add(KEEP_ALIVE).addNumber(timeout).add(KEEP_ALIVE_MAX).addNumber(max).add(CRLF);
+            }
+            return add(CLOSE);
+        }
+
+        /**
+         * Ends the header and returns a copy of it, the thread's buffer is
+         * reused by the next header it builds.
+         */
+        public byte[] toBytes() {
+            add(CRLF);
+            return Arrays.copyOf(buf, len);
+        }
+
+        public int status() {
+            return status;
         }
 
         public String toString() {
-            header.append("\r\n");
-            return header.toString();
+            return new String(buf, 0, len, StandardCharsets.US_ASCII);
         }
 
-        public Header setStatus(String status) {
-            header.insert(0, status + "\r\n");
+        private Header addNumber(long n) {
+            if (n < 0) {
+                return add(ascii(Long.toString(n)));
+            }
+            int digits = 1;
+            for (long m = n; m >= 10; m /= 10) digits++;
+            ensure(digits);
+            for (int i = len + digits - 1; i >= len; i--) {
+                buf[i] = (byte) ('0' + n % 10);
+                n /= 10;
+            }
+            len += digits;
             return this;
         }
 
-        public Header setLastModified(Date lastModified) {
-            header.append("Last-Modified: " + HTTPDateFormat.format(lastModified) + "\r\n");
-            return this;
+        private void ensure(int extra) {
+            if (len + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+            }
         }
 
-        public Header setContentLength(long contentLength) {
-            header.append("Content-Length: " + contentLength + "\r\n");
-            return this;
+        static byte[] ascii(String s) {
+            return s.getBytes(StandardCharsets.US_ASCII);
         }
     }
 }
@@ -0,0 +1,356 @@
+/*
+ * NioServer.java
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking engine for MyWebServer. Acceptor threads accept connections
+ * and deal them out round-robin to their own few event loop threads, each
+ * of which multiplexes its connections over a single Selector. Requests
+ * are answered by the same RequestHandler the blocking engine uses.
+ */
+public class NioServer {
+
+    /**
+     * Serves connections from the listening channels, one acceptor thread
+     * each with its own share of the event loops. The last acceptor runs
+     * on the calling thread.
+     */
+    public static void serve(ServerContext context, ServerSocketChannel[] listeners) throws IOException {
+        ServerConfig config = context.config;
+        int loopCount = 0;
+        for (int i = 0; i < listeners.length; i++) {
+            EventLoop[] loops = new EventLoop[MyWebServer.share(config.eventLoops, i, listeners.length)];
+            for (int j = 0; j < loops.length; j++) {
+                loops[j] = new EventLoop(context);
+                Thread t = new Thread(loops[j], "nio-loop-" + (++loopCount));
+                t.setDaemon(true);
+                t.start();
+            }
+            ServerSocketChannel serverChannel = listeners[i];
+            String name = "acceptor-" + (i + 1);
+            if (i == listeners.length - 1) {
+                accept(serverChannel, loops, context.limiter);
+            } else {
+                Thread t = new Thread(() -> accept(serverChannel, loops, context.limiter), name);
+                t.setDaemon(true);
+                t.start();
+            }
+        }
+    }
+
+    /**
+     * Accept loop: waits for a connection, accepts it and hands it off to
+     * one of loops round-robin, or sheds it with a 503 if we are already
+     * serving all we can.
+     */
+    static void accept(ServerSocketChannel serverChannel, EventLoop[] loops, ConnectionLimiter limiter) {
+        int next = 0;
+        while (true) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                if (!limiter.tryAcquire()) {
+                    limiter.reject(channel);
+                    continue;
+                }
+                channel.configureBlocking(false);
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    static class EventLoop implements Runnable {
+        private Selector selector;
+        private ConcurrentLinkedQueue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        private ServerContext context;
+        private RequestHandler handler;
+        private int keepAliveTimeout;
+        private int headerTimeout;
+        private int maxRequests;
+        private int maxHeaderSize;
+        private ServerStats stats;
+        private AccessLog accessLog;
+        private ConnectionLimiter limiter;
+        private BufferPool buffers;
+        private long lastSweep = System.currentTimeMillis();
+
+        EventLoop(ServerContext context) throws IOException {
+            ServerConfig config = context.config;
+            this.selector = Selector.open();
+            this.context = context;
+            this.handler = new RequestHandler(context);
+            this.keepAliveTimeout = config.keepAliveTimeout;
+            this.headerTimeout = config.headerTimeout;
+            this.maxRequests = config.maxRequests;
+            this.maxHeaderSize = config.maxHeaderSize;
+            this.stats = context.stats;
+            this.accessLog = context.accessLog;
+            this.limiter = context.limiter;
+            this.buffers = context.buffers;
+        }
+
+        /**
+         * Called from the accept thread, the channel is registered with
+         * the selector by the loop itself on its next wakeup.
+         */
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    selector.select(1000);
+
+                    SocketChannel channel;
+                    while ((channel = pending.poll()) != null) {
+                        Connection conn = new Connection(channel, this);
+                        conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection conn = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) conn.onWritable();
+                            if (key.isValid() && key.isReadable()) conn.onReadable();
+                        }
+                        catch (IOException e) {
+                            // client went away mid-request, nothing to answer
+                            conn.close();
+                        }
+                        catch (RuntimeException e) {
+                            // a bug answering this one mustn't take the
+                            // loop's other connections down with it
+                            e.printStackTrace();
+                            conn.fail();
+                        }
+                    }
+
+                    closeExpired();
+                }
+                catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Closes connections that have run out of time: idle keep-alive
+         * connections past the keep-alive timeout, clients that haven't
+         * sent a whole request head by its deadline and clients that
+         * haven't read their response by its deadline. Runs at most once a
+         * second.
+         */
+        private void closeExpired() {
+            long now = System.currentTimeMillis();
+            if (now - lastSweep < 1000) return;
+            lastSweep = now;
+
+            long idleSince = now - keepAliveTimeout * 1000L;
+            for (SelectionKey key : selector.keys()) {
+                Connection conn = (Connection) key.attachment();
+                if (conn == null) continue;
+                if (conn.writing()) {
+                    if (now > conn.writeDeadline) {
+                        stats.writeTimeout();
+                        conn.close();
+                    }
+                } else if (conn.headDeadline != 0) {
+                    if (now > conn.headDeadline) {
+                        stats.headerTimeout();
+                        conn.close();
+                    }
+                } else if (conn.lastActive < idleSince) {
+                    conn.close();
+                }
+            }
+        }
+    }
+
+    static class Connection {
+        private SocketChannel channel;
+        private EventLoop loop;
+        private SelectionKey key;
+        // pooled and kept in fill mode, only held while there are bytes the
+        // parser hasn't taken yet so idle connections don't tie up a buffer
+        private ByteBuffer in;
+        private RequestParser parser;
+        private String remote; // for the access log
+        private int served;
+        private long lastActive = System.currentTimeMillis();
+        // when the head of the request being read has to be complete by,
+        // 0 while waiting for a request to start; the first one is due
+        // within the header timeout of connecting
+        private long headDeadline;
+
+        // the response currently being written
+        private ResponseWriter writer;
+        private HttpResponse response;
+        private HttpRequest request; // null if it couldn't be parsed
+        private long requestStart;
+        private long writeDeadline;
+        private boolean keepAlive = true;
+
+        Connection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            this.parser = new RequestParser(loop.maxHeaderSize, loop.accessLog != null);
+            this.writer = new ResponseWriter(loop.context);
+            this.headDeadline = lastActive + loop.headerTimeout * 1000L;
+            if (loop.accessLog != null) {
+                this.remote = channel.socket().getInetAddress().getHostAddress();
+            }
+            loop.stats.connectionOpened();
+        }
+
+        boolean writing() {
+            return writer.writing();
+        }
+
+        void onReadable() throws IOException {
+            if (in == null) {
+                in = loop.buffers.acquire();
+            }
+            int read = channel.read(in);
+            if (read < 0) {
+                close();
+                return;
+            }
+            lastActive = System.currentTimeMillis();
+            process();
+        }
+
+        void onWritable() throws IOException {
+            lastActive = System.currentTimeMillis();
+            if (writer.write(channel)) {
+                sent();
+                process();
+            }
+        }
+
+        /**
+         * Answers buffered requests one at a time. We stop reading while a
+         * response is still being written, which keeps a client pipelining
+         * many requests from making us queue up responses.
+         */
+        private void process() throws IOException {
+            while (keepAlive && !writing()) {
+                response = nextResponse();
+                if (response == null) break;
+                keepAlive = response.keepAlive;
+                writeDeadline = writer.deadline(response);
+                writer.start(response);
+                if (!writer.write(channel)) break;
+                sent();
+            }
+
+            if (!keepAlive && !writing()) {
+                close();
+                return;
+            }
+            if (in != null && in.position() == 0) {
+                loop.buffers.release(in);
+                in = null;
+            }
+            if (key.isValid()) {
+                key.interestOps(writing() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * The current response has been written in full. The parser is only
+         * reset now since the access log reads the request it filled in.
+         */
+        private void sent() {
+            loop.stats.sent(response, requestStart);
+            if (loop.accessLog != null) {
+                loop.accessLog.log(remote, request, response);
+            }
+            parser.reset();
+        }
+
+        /**
+         * Feeds the input buffer to the parser and answers the request once
+         * its head is complete, or returns null if we need more bytes.
+         */
+        private HttpResponse nextResponse() {
+            if (in == null) return null;
+            in.flip();
+            try {
+                int result = parser.parse(in);
+                if (result == RequestParser.NEED_MORE) {
+                    if (headDeadline == 0 && parser.started()) {
+                        headDeadline = System.currentTimeMillis() + loop.headerTimeout * 1000L;
+                    }
+                    return null;
+                }
+                headDeadline = 0;
+                served++;
+                requestStart = System.nanoTime();
+                request = result == RequestParser.DONE ? parser.request() : null;
+                HttpResponse response = result == RequestParser.DONE
+                    ? loop.handler.handle(parser.request(), loop.maxRequests - served)
+                    : loop.handler.badRequest();
+                loop.stats.handled(requestStart);
+                return response;
+            }
+            finally {
+                in.compact();
+            }
+        }
+
+        /**
+         * Answering a request failed unexpectedly. Sends a 500, as much of it
+         * as the socket takes without blocking, unless part of a response
+         * has gone out already, and closes the connection.
+         */
+        void fail() {
+            if (channel.isOpen() && !writing()) {
+                HttpResponse response = loop.handler.serverError();
+                try {
+                    channel.write(new ByteBuffer[] {
+                        ByteBuffer.wrap(response.head),
+                        ByteBuffer.wrap(response.body[0].bytes),
+                    });
+                    channel.shutdownOutput();
+                }
+                catch (IOException e) {
+                    // the client is gone, nothing to tell it
+                }
+            }
+            close();
+        }
+
+        void close() {
+            if (!channel.isOpen()) return;
+            try {
+                writer.close();
+                channel.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (in != null) {
+                loop.buffers.release(in);
+                in = null;
+            }
+            loop.stats.connectionClosed();
+            loop.limiter.release();
+        }
+    }
+}
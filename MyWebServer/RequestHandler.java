@@ -0,0 +1,402 @@
+/*
+ * RequestHandler.java
+ */
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Turns a parsed request into a response. This is where the server's
+ * semantics live (GET/HEAD, directory index, 304, error pages) so the
+ * blocking and NIO engines answer every request the same way.
+ *
+ * Thread safe, though each connection or event loop creates its own.
+ */
+public class RequestHandler {
+    // separates the parts of a multipart/byteranges body
+    private static final String BOUNDARY = Long.toHexString(new Random().nextLong());
+    private static final byte[] MULTIPART_CONTENT_TYPE =
+        MyWebServer.Header.ascii("Content-Type: multipart/byteranges; boundary=" + BOUNDARY + "\r\n");
+    private static final byte[] CLOSE_DELIMITER = MyWebServer.Header.ascii("\r\n--" + BOUNDARY + "--\r\n");
+
+    // the 404 page's length never changes
+    private static final byte[] NOT_FOUND_CONTENT_LENGTH =
+        MyWebServer.Header.ascii("Content-Length: " + MyWebServer.fileNotFoundBytes.length + "\r\n");
+
+    // served in place of a file when --stats=on
+    private static final String STATS_PATH = "__stats";
+    private static final byte[] STATS_HEADERS =
+        MyWebServer.Header.ascii("Content-Type: text/plain; charset=us-ascii\r\nCache-Control: no-store\r\n");
+
+    private String dir;
+    private int keepAliveTimeout;
+    private ContentCache contentCache;
+    private MetadataCache metadataCache;
+    private CompressionCache compressionCache;
+    private ServerStats stats; // null unless --stats=on
+
+    public RequestHandler(ServerContext context) {
+        this.dir = context.config.dir;
+        this.keepAliveTimeout = context.config.keepAliveTimeout;
+        this.contentCache = context.contentCache;
+        this.metadataCache = context.metadataCache;
+        this.compressionCache = context.compressionCache;
+        this.stats = context.config.stats ? context.stats : null;
+    }
+
+    /**
+     * The response to a request we couldn't parse. The connection is closed
+     * afterwards since we can't tell where the next request starts.
+     */
+    public HttpResponse badRequest() {
+        MyWebServer.Header header = MyWebServer.Header.start(MyWebServer.Header.BAD_REQUEST)
+            .setContentLength(MyWebServer.badRequestBytes.length)
+            .setConnection(false, 0, 0);
+        return HttpResponse.of(header, MyWebServer.badRequestBytes, false);
+    }
+
+    /**
+     * For when answering a request failed unexpectedly.
+     */
+    public HttpResponse serverError() {
+        MyWebServer.Header header = MyWebServer.Header.start(MyWebServer.Header.INTERNAL_SERVER_ERROR)
+            .setContentLength(MyWebServer.internalServerErrorBytes.length)
+            .setConnection(false, 0, 0);
+        return HttpResponse.of(header, MyWebServer.internalServerErrorBytes, false);
+    }
+
+    /**
+     * Answers a request, remaining is the number of further requests the
+     * connection may serve after this one.
+     */
+    public HttpResponse handle(HttpRequest req, int remaining) {
+        MyWebServer.Header header;
+        boolean keepAlive = remaining > 0 && req.wantsKeepAlive();
+        boolean head = req.method.equals("HEAD");
+
+        if (!req.method.equals("GET") && !head) {
+            // we don't know how long the request body is, so we can't
+            // find the start of the next request
+            header = MyWebServer.Header.start(MyWebServer.Header.NOT_IMPLEMENTED)
+                .setContentLength(MyWebServer.notImplementedBytes.length)
+                .setConnection(false, 0, 0);
+            return HttpResponse.of(header, MyWebServer.notImplementedBytes, false);
+        }
+
+        if (stats != null && req.fileName.equals(STATS_PATH)) {
+            byte[] body = stats.toBytes();
+            header = MyWebServer.Header.start(MyWebServer.Header.OK)
+                .add(STATS_HEADERS)
+                .setContentLength(body.length)
+                .setConnection(keepAlive, keepAliveTimeout, remaining);
+            return head ? HttpResponse.of(header, keepAlive) : HttpResponse.of(header, body, keepAlive);
+        }
+
+        FileMetadata meta = lookup(req.fileName);
+        File file = meta.file;
+
+        // file not found, or a directory that doesn't contain index.html
+        if (file == null) {
+            header = MyWebServer.Header.start(MyWebServer.Header.NOT_FOUND)
+                .add(NOT_FOUND_CONTENT_LENGTH)
+                .setConnection(keepAlive, keepAliveTimeout, remaining);
+            if (head) {
+                return HttpResponse.of(header, keepAlive);
+            }
+            return HttpResponse.of(header, MyWebServer.fileNotFoundBytes, keepAlive);
+        }
+
+        boolean compressible = CompressionCache.isCompressible(file, meta.length);
+
+        // pick the representation a 200 would send up front, so 304s carry
+        // its ETag; that means compressing the file if nobody has yet, since
+        // only then do we know whether gzip is any use for it
+        FileMetadata sidecar = null;
+        byte[] compressed = null;
+        String gzipEtag = null;
+        byte[] gzipEtagHeader = null;
+        if (compressible && req.acceptsGzip()) {
+            sidecar = sidecar(req, meta);
+            if (sidecar != null) {
+                // the sidecar's bytes are what we send, so it is tagged by its own version
+                gzipEtag = sidecar.gzipEtag;
+                gzipEtagHeader = sidecar.gzipEtagHeader;
+            } else if ((compressed = compressed(meta)) != null) {
+                gzipEtag = meta.gzipEtag;
+                gzipEtagHeader = meta.weakGzipEtagHeader;
+            }
+        }
+
+        // If-None-Match takes precedence over If-Modified-Since when both are sent
+        if (req.ifNoneMatch != null) {
+            byte[] matched = matchingEtag(req.ifNoneMatch, meta, gzipEtag, gzipEtagHeader);
+            if (matched != null) {
+                return notModified(meta, matched, compressible, keepAlive, remaining);
+            }
+        }
+        else if (req.ifModifiedSince != null) {
+            long ifModifiedSince = HttpDate.parse(req.ifModifiedSince);
+            if (ifModifiedSince == -1) {
+                return badRequest();
+            }
+
+            // Last-Modified only has second precision, compare at that
+            if (meta.lastModified / 1000 * 1000 <= ifModifiedSince) {
+                byte[] etag = gzipEtagHeader != null ? gzipEtagHeader : meta.etagHeader;
+                return notModified(meta, etag, compressible, keepAlive, remaining);
+            }
+        }
+
+        List<ByteRange> ranges = null;
+        if (req.range != null && !head && ifRangeMatches(req.ifRange, meta)) {
+            ranges = ByteRange.parse(req.range, meta.length);
+            if (ranges != null && ranges.isEmpty()) {
+                header = MyWebServer.Header.start(MyWebServer.Header.RANGE_NOT_SATISFIABLE)
+                    .add(meta.lastModifiedHeader)
+                    .add(meta.etagHeader)
+                    .add(MyWebServer.Header.ascii("Content-Range: bytes */" + meta.length + "\r\n"));
+                if (compressible) header.add(MyWebServer.Header.VARY_ACCEPT_ENCODING);
+                header.setContentLength(0)
+                    .setConnection(keepAlive, keepAliveTimeout, remaining);
+                return HttpResponse.of(header, keepAlive);
+            }
+        }
+
+        if (ranges != null) {
+            return partialContent(meta, cachedContent(meta), ranges, compressible, keepAlive, remaining);
+        }
+
+        if (gzipEtagHeader != null) {
+            return gzipped(meta, sidecar, compressed, head, keepAlive, remaining);
+        }
+
+        header = MyWebServer.Header.start(MyWebServer.Header.OK)
+            .add(meta.lastModifiedHeader)
+            .add(meta.etagHeader)
+            .add(MyWebServer.Header.ACCEPT_RANGES);
+        if (compressible) header.add(MyWebServer.Header.VARY_ACCEPT_ENCODING);
+        header.setContentLength(meta.length)
+            .setConnection(keepAlive, keepAliveTimeout, remaining);
+        if (head) {
+            return HttpResponse.of(header, keepAlive);
+        }
+        ContentCache.Entry cached = cachedContent(meta);
+        if (cached != null) {
+            return HttpResponse.of(header, cached.body, keepAlive);
+        }
+        return HttpResponse.of(header, file, meta.lastModified, meta.length, keepAlive);
+    }
+
+    private FileMetadata lookup(String fileName) {
+        return metadataCache != null
+            ? metadataCache.lookup(fileName)
+            : FileMetadata.stat(this.dir, fileName);
+    }
+
+    /**
+     * The file's contents from the content cache, or null if it isn't
+     * cacheable and should be streamed from disk.
+     */
+    private ContentCache.Entry cachedContent(FileMetadata meta) {
+        if (contentCache == null) {
+            return null;
+        }
+        ContentCache.Entry cached;
+        try {
+            cached = contentCache.get(meta.canonicalPath, meta.file, meta.lastModified, meta.length);
+        }
+        catch (IOException e) {
+            return null; // let the engine stream it and report the error
+        }
+        if (cached != null && cached.length != meta.length) {
+            return null; // changed under us, the headers were worked out for the old length
+        }
+        return cached;
+    }
+
+    /**
+     * A gzip encoded 200 for a compressible file: the precompressed sidecar
+     * if there is one, otherwise the compressed bytes from the compression
+     * cache. A HEAD gets the same headers without the body.
+     */
+    private HttpResponse gzipped(FileMetadata meta, FileMetadata sidecar, byte[] compressed, boolean head,
+                                 boolean keepAlive, int remaining) {
+        if (sidecar != null) {
+            MyWebServer.Header header =
+                gzipHeader(meta, sidecar.gzipEtagHeader, sidecar.length, keepAlive, remaining);
+            if (head) {
+                return HttpResponse.of(header, keepAlive);
+            }
+            ContentCache.Entry cached = cachedContent(sidecar);
+            if (cached != null) {
+                return HttpResponse.of(header, cached.body, keepAlive);
+            }
+            return HttpResponse.of(header, sidecar.file, sidecar.lastModified, sidecar.length, keepAlive);
+        }
+
+        MyWebServer.Header header =
+            gzipHeader(meta, meta.weakGzipEtagHeader, compressed.length, keepAlive, remaining);
+        return head ? HttpResponse.of(header, keepAlive) : HttpResponse.of(header, compressed, keepAlive);
+    }
+
+    /**
+     * The file gzipped, compressed once and kept in the compression cache,
+     * or null if it is too large, doesn't get any smaller, can't be read or
+     * compression is off.
+     */
+    private byte[] compressed(FileMetadata meta) {
+        if (compressionCache == null) {
+            return null;
+        }
+        try {
+            ContentCache.Entry cached = cachedContent(meta);
+            return compressionCache.get(meta.canonicalPath, meta.file, meta.lastModified, meta.length,
+                                        cached != null ? cached.body : null);
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The precompressed foo.gz next to the requested file, or null if there
+     * isn't one or it is older than the file.
+     */
+    private FileMetadata sidecar(HttpRequest req, FileMetadata meta) {
+        String sidecarName = (meta.isDirectory ? req.fileName + "/index.html" : req.fileName) + ".gz";
+        FileMetadata sidecar = lookup(sidecarName);
+        if (sidecar.file == null || sidecar.isDirectory || sidecar.lastModified < meta.lastModified) {
+            return null;
+        }
+        return sidecar;
+    }
+
+    private MyWebServer.Header gzipHeader(FileMetadata meta, byte[] etagHeader, long length,
+                                          boolean keepAlive, int remaining) {
+        return MyWebServer.Header.start(MyWebServer.Header.OK)
+            .add(meta.lastModifiedHeader)
+            .add(etagHeader)
+            .add(MyWebServer.Header.CONTENT_ENCODING_GZIP)
+            .add(MyWebServer.Header.VARY_ACCEPT_ENCODING)
+            .setContentLength(length)
+            .setConnection(keepAlive, keepAliveTimeout, remaining);
+    }
+
+    /**
+     * A 304 carrying the validators of the representation a 200 would have
+     * sent. It has no body and no Content-Length, which would describe that
+     * 200 and is easily mistaken for the length of this response.
+     */
+    private HttpResponse notModified(FileMetadata meta, byte[] etagHeader, boolean compressible,
+                                     boolean keepAlive, int remaining) {
+        MyWebServer.Header header = MyWebServer.Header.start(MyWebServer.Header.NOT_MODIFIED)
+            .add(meta.lastModifiedHeader)
+            .add(etagHeader);
+        if (compressible) header.add(MyWebServer.Header.VARY_ACCEPT_ENCODING);
+        header.setConnection(keepAlive, keepAliveTimeout, remaining);
+        return HttpResponse.of(header, keepAlive);
+    }
+
+    /**
+     * A 206 for the requested ranges, sent straight from the cached bytes if
+     * we have them or as positioned regions of the file otherwise. More than
+     * one range is sent as multipart/byteranges.
+     */
+    private HttpResponse partialContent(FileMetadata meta, ContentCache.Entry cached, List<ByteRange> ranges,
+                                        boolean compressible, boolean keepAlive, int remaining) {
+        MyWebServer.Header header = MyWebServer.Header.start(MyWebServer.Header.PARTIAL_CONTENT)
+            .add(meta.lastModifiedHeader)
+            .add(meta.etagHeader)
+            .add(MyWebServer.Header.ACCEPT_RANGES);
+        if (compressible) header.add(MyWebServer.Header.VARY_ACCEPT_ENCODING);
+
+        if (ranges.size() == 1) {
+            ByteRange r = ranges.get(0);
+            header.setContentRange(r.first, r.last, meta.length)
+                .setContentLength(r.length())
+                .setConnection(keepAlive, keepAliveTimeout, remaining);
+            HttpResponse.Part part = cached != null
+                ? HttpResponse.Part.of(cached.body, r.first, r.length())
+                : HttpResponse.Part.region(r.first, r.length());
+            return HttpResponse.of(header, new HttpResponse.Part[] { part }, meta.file, meta.lastModified, keepAlive);
+        }
+
+        HttpResponse.Part[] body = new HttpResponse.Part[ranges.size() * 2 + 1];
+        long length = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            ByteRange r = ranges.get(i);
+            byte[] partHeader = MyWebServer.Header.ascii("\r\n--" + BOUNDARY + "\r\nContent-Range: bytes "
+                + r.first + "-" + r.last + "/" + meta.length + "\r\n\r\n");
+            body[i * 2] = HttpResponse.Part.of(partHeader);
+            body[i * 2 + 1] = cached != null
+                ? HttpResponse.Part.of(cached.body, r.first, r.length())
+                : HttpResponse.Part.region(r.first, r.length());
+            length += partHeader.length + r.length();
+        }
+        body[body.length - 1] = HttpResponse.Part.of(CLOSE_DELIMITER);
+        length += CLOSE_DELIMITER.length;
+
+        header.add(MULTIPART_CONTENT_TYPE)
+            .setContentLength(length)
+            .setConnection(keepAlive, keepAliveTimeout, remaining);
+        return HttpResponse.of(header, body, meta.file, meta.lastModified, keepAlive);
+    }
+
+    /**
+     * A range request only applies if the If-Range validator (when sent)
+     * still matches the file, otherwise the client gets the whole thing.
+     * Ranges are always served from the identity encoding, and entity tags
+     * have to match strongly.
+     */
+    private static boolean ifRangeMatches(String ifRange, FileMetadata meta) {
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals(meta.etag);
+        }
+        if (ifRange.startsWith("W/")) {
+            return false;
+        }
+        return HttpDate.parse(ifRange) == meta.lastModified / 1000 * 1000;
+    }
+
+    /**
+     * Checks an If-None-Match list against the representations we could
+     * send, using the weak comparison RFC 7232 asks for. gzipEtag and its
+     * ETag line are the gzip encoded one's, or null if we'd send identity.
+     * Returns the ETag line of the one that matched, or null.
+     */
+    private static byte[] matchingEtag(String ifNoneMatch, FileMetadata meta,
+                                       String gzipEtag, byte[] gzipEtagHeader) {
+        int pos = 0;
+        int end = ifNoneMatch.length();
+        while (pos < end) {
+            char c = ifNoneMatch.charAt(pos);
+            if (c == ' ' || c == '\t' || c == ',') {
+                pos++;
+                continue;
+            }
+            if (c == '*') {
+                return gzipEtagHeader != null ? gzipEtagHeader : meta.etagHeader;
+            }
+            if (ifNoneMatch.startsWith("W/", pos)) {
+                pos += 2;
+            }
+            int close = pos < end && ifNoneMatch.charAt(pos) == '"' ? ifNoneMatch.indexOf('"', pos + 1) : -1;
+            if (close < 0) {
+                return null; // malformed, treat it as not matching
+            }
+            int len = close + 1 - pos;
+            if (len == meta.etag.length() && ifNoneMatch.regionMatches(pos, meta.etag, 0, len)) {
+                return meta.etagHeader;
+            }
+            if (gzipEtag != null && len == gzipEtag.length() && ifNoneMatch.regionMatches(pos, gzipEtag, 0, len)) {
+                return gzipEtagHeader;
+            }
+            pos = close + 1;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * RequestParser.java
+ */
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental parser for a request line and header block. Bytes are fed in
+ * as they arrive, in as many pieces as the network delivers them, and the
+ * parser keeps its place between calls. Only the target and the values of
+ * the headers we use become Strings; everything else is skipped byte by
+ * byte. Heads larger than the configured limit are rejected, and so are
+ * request lines whose target isn't a path starting with '/' free of
+ * control bytes, or whose version isn't HTTP/1.0 or HTTP/1.1.
+ *
+ * We don't take request bodies, but a body has to be read past to find
+ * the next request on the connection. A Content-Length body is skipped
+ * as part of the request, and has to fit in the head size limit along
+ * with the head; a chunked (or any other Transfer-Encoding) body can't be
+ * delimited safely, so such a request is rejected.
+ *
+ * One parser per connection, reset() between requests.
+ */
+public class RequestParser {
+
+    // parse() results
+    public static final int NEED_MORE = 0;
+    public static final int DONE = 1;
+    public static final int ERROR = 2;
+
+    // states
+    private static final int START = 0;
+    private static final int METHOD = 1;
+    private static final int TARGET = 2;
+    private static final int VERSION = 3;
+    private static final int REQUEST_LINE_LF = 4;
+    private static final int HEADER_START = 5;
+    private static final int NAME = 6;
+    private static final int VALUE_START = 7;
+    private static final int VALUE = 8;
+    private static final int HEADER_LF = 9;
+    private static final int END_LF = 10;
+    private static final int BODY = 11;
+
+    // the headers we keep, as lower case names
+    private static final byte[][] KNOWN_HEADERS = {
+        ascii("if-modified-since"),
+        ascii("connection"),
+        ascii("range"),
+        ascii("if-range"),
+        ascii("accept-encoding"),
+        ascii("if-none-match"),
+        ascii("content-length"),
+        ascii("transfer-encoding"),
+        ascii("referer"),
+        ascii("user-agent"),
+    };
+    private static final int IF_MODIFIED_SINCE = 0;
+    private static final int CONNECTION = 1;
+    private static final int RANGE = 2;
+    private static final int IF_RANGE = 3;
+    private static final int ACCEPT_ENCODING = 4;
+    private static final int IF_NONE_MATCH = 5;
+    private static final int CONTENT_LENGTH = 6;
+    private static final int TRANSFER_ENCODING = 7;
+    private static final int REFERER = 8;
+    private static final int USER_AGENT = 9;
+
+    // the headers only the access log needs
+    private static final int FIRST_LOG_HEADER = REFERER;
+
+    // stray CR and LF bytes we skip before a request line, enough for the
+    // extra CRLF some clients send after a request body
+    private static final int MAX_LEADING_BLANKS = 4;
+
+    private static final byte[] GET = ascii("GET");
+    private static final byte[] HEAD = ascii("HEAD");
+    private static final byte[] HTTP_1_1 = ascii("HTTP/1.1");
+    private static final byte[] HTTP_1_0 = ascii("HTTP/1.0");
+
+    private final int maxHeadSize;
+    private final int knownHeaders;
+    private final HttpRequest req = new HttpRequest();
+
+    private int state = START;
+    private int consumed;
+    private int header; // index into KNOWN_HEADERS of the header being read, or -1
+    private long bodyLeft; // bytes of the request body still to skip
+
+    // bytes of the token being read, reused across requests
+    private byte[] token = new byte[64];
+    private int tokenLen;
+
+    public RequestParser(int maxHeadSize) {
+        this(maxHeadSize, false);
+    }
+
+    /**
+     * keepLogHeaders also keeps Referer and User-Agent, which only the
+     * access log uses.
+     */
+    public RequestParser(int maxHeadSize, boolean keepLogHeaders) {
+        this.maxHeadSize = maxHeadSize;
+        this.knownHeaders = keepLogHeaders ? KNOWN_HEADERS.length : FIRST_LOG_HEADER;
+    }
+
+    /**
+     * Gets ready for the next request on the connection.
+     */
+    public void reset() {
+        state = START;
+        consumed = 0;
+        tokenLen = 0;
+        req.reset();
+    }
+
+    /**
+     * The request parsed by the last call to parse() that returned DONE.
+     * The same object is reused after reset().
+     */
+    public HttpRequest request() {
+        return req;
+    }
+
+    /**
+     * True once any part of the current request has been seen, counting
+     * the CRLFs skipped before it, so a client sending nothing but those
+     * is held to the header timeout like any other.
+     */
+    public boolean started() {
+        return state != START || consumed > 0;
+    }
+
+    /**
+     * Consumes bytes from buf until the request head is complete (DONE, with
+     * buf positioned at the first byte after it), the buffer runs out
+     * (NEED_MORE, every byte consumed) or the head is malformed (ERROR).
+     */
+    public int parse(ByteBuffer buf) {
+        while (buf.hasRemaining()) {
+            byte b = buf.get();
+            if (state != START && ++consumed > maxHeadSize) {
+                return ERROR;
+            }
+
+            switch (state) {
+                case START:
+                    // skip stray CRLFs between requests, but only a few
+                    if (b == '\r' || b == '\n') {
+                        if (++consumed > MAX_LEADING_BLANKS) return ERROR;
+                        break;
+                    }
+                    consumed++;
+                    state = METHOD;
+                    // fall through
+                case METHOD:
+                    if (b == ' ') {
+                        req.method = tokenEquals(GET) ? "GET" : tokenEquals(HEAD) ? "HEAD" : tokenString();
+                        tokenLen = 0;
+                        state = TARGET;
+                    } else if (b == '\r' || b == '\n') {
+                        return ERROR;
+                    } else {
+                        append(b);
+                    }
+                    break;
+                case TARGET:
+                    if (b == ' ' || b == '\r' || b == '\n') {
+                        if (tokenLen == 0) return ERROR;
+                        req.fileName = new String(token, 1, tokenLen - 1, StandardCharsets.ISO_8859_1);
+                        tokenLen = 0;
+                        if (b == ' ') {
+                            state = VERSION;
+                        } else {
+                            req.version = "HTTP/1.0";
+                            state = b == '\r' ? REQUEST_LINE_LF : HEADER_START;
+                        }
+                    } else if (tokenLen == 0 && b != '/' || isControl(b)) {
+                        // only origin-form targets, and no control bytes in them
+                        return ERROR;
+                    } else {
+                        append(b);
+                    }
+                    break;
+                case VERSION:
+                    if (b == '\r' || b == '\n') {
+                        if (tokenEquals(HTTP_1_1)) {
+                            req.version = "HTTP/1.1";
+                        } else if (tokenEquals(HTTP_1_0)) {
+                            req.version = "HTTP/1.0";
+                        } else {
+                            return ERROR;
+                        }
+                        tokenLen = 0;
+                        state = b == '\r' ? REQUEST_LINE_LF : HEADER_START;
+                    } else {
+                        append(b);
+                    }
+                    break;
+                case REQUEST_LINE_LF:
+                case HEADER_LF:
+                    if (b != '\n') return ERROR;
+                    state = HEADER_START;
+                    break;
+                case HEADER_START:
+                    if (b == '\r') {
+                        state = END_LF;
+                        break;
+                    }
+                    if (b == '\n') {
+                        int result = endOfHead();
+                        if (result != NEED_MORE) return result;
+                        break;
+                    }
+                    if (b == ' ' || b == '\t' || b == ':') {
+                        return ERROR; // folded header lines or an empty name
+                    }
+                    state = NAME;
+                    // fall through
+                case NAME:
+                    if (b == ':') {
+                        header = knownHeader();
+                        tokenLen = 0;
+                        state = VALUE_START;
+                    } else if (b == '\r' || b == '\n') {
+                        return ERROR;
+                    } else if (tokenLen < token.length) {
+                        // names longer than the buffer can't be one we know
+                        token[tokenLen++] = lower(b);
+                    }
+                    break;
+                case VALUE_START:
+                    if (b == ' ' || b == '\t') break;
+                    state = VALUE;
+                    // fall through
+                case VALUE:
+                    if (b == '\r' || b == '\n') {
+                        if (header >= 0 && !setHeader(header, trimmedTokenString())) {
+                            return ERROR;
+                        }
+                        tokenLen = 0;
+                        state = b == '\r' ? HEADER_LF : HEADER_START;
+                    } else if (header >= 0) {
+                        append(b);
+                    }
+                    break;
+                case END_LF:
+                    if (b != '\n') return ERROR;
+                    int result = endOfHead();
+                    if (result != NEED_MORE) return result;
+                    break;
+                case BODY:
+                    if (--bodyLeft == 0) return DONE;
+                    break;
+            }
+        }
+        return NEED_MORE;
+    }
+
+    /**
+     * The head has been read: DONE if there is no body, NEED_MORE with the
+     * parser set to skip it otherwise, ERROR if it is too large to skip.
+     */
+    private int endOfHead() {
+        if (req.contentLength <= 0) {
+            return DONE;
+        }
+        if (req.contentLength > maxHeadSize - consumed) {
+            return ERROR;
+        }
+        bodyLeft = req.contentLength;
+        state = BODY;
+        return NEED_MORE;
+    }
+
+    /**
+     * Stores a header value, false if it makes the request unreadable.
+     */
+    private boolean setHeader(int header, String val) {
+        switch (header) {
+            case IF_MODIFIED_SINCE:
+                req.ifModifiedSince = val;
+                break;
+            case CONNECTION:
+                req.connection = val;
+                break;
+            case RANGE:
+                req.range = val;
+                break;
+            case IF_RANGE:
+                req.ifRange = val;
+                break;
+            case ACCEPT_ENCODING:
+                req.acceptEncoding = val;
+                break;
+            case IF_NONE_MATCH:
+                req.ifNoneMatch = val;
+                break;
+            case REFERER:
+                req.referer = val;
+                break;
+            case USER_AGENT:
+                req.userAgent = val;
+                break;
+            case CONTENT_LENGTH:
+                long length = contentLength(val);
+                // two different lengths would leave us guessing where the body ends
+                if (length < 0 || req.contentLength >= 0 && req.contentLength != length) return false;
+                req.contentLength = length;
+                break;
+            case TRANSFER_ENCODING:
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * A Content-Length value, digits only, or -1.
+     */
+    private static long contentLength(String val) {
+        if (val.isEmpty() || val.length() > 18) return -1;
+        long n = 0;
+        for (int i = 0; i < val.length(); i++) {
+            char c = val.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            n = n * 10 + (c - '0');
+        }
+        return n;
+    }
+
+    private int knownHeader() {
+        for (int i = 0; i < knownHeaders; i++) {
+            if (tokenEquals(KNOWN_HEADERS[i])) return i;
+        }
+        return -1;
+    }
+
+    private void append(byte b) {
+        if (tokenLen == token.length) {
+            byte[] bigger = new byte[token.length * 2];
+            System.arraycopy(token, 0, bigger, 0, tokenLen);
+            token = bigger;
+        }
+        token[tokenLen++] = b;
+    }
+
+    private boolean tokenEquals(byte[] s) {
+        if (tokenLen != s.length) return false;
+        for (int i = 0; i < tokenLen; i++) {
+            if (token[i] != s[i]) return false;
+        }
+        return true;
+    }
+
+    private String tokenString() {
+        return new String(token, 0, tokenLen, StandardCharsets.ISO_8859_1);
+    }
+
+    private String trimmedTokenString() {
+        int end = tokenLen;
+        while (end > 0 && (token[end - 1] == ' ' || token[end - 1] == '\t')) end--;
+        return new String(token, 0, end, StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean isControl(byte b) {
+        return (b & 0xff) < 0x20 || b == 0x7f;
+    }
+
+    private static byte lower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * ResponseWriter.java
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes an HttpResponse to a socket channel with as few system calls as
+ * we can manage. The head, in-memory parts and file regions small enough
+ * to read into memory are copied into one pooled direct buffer and written
+ * together, so a small response leaves in one segment and the JDK has no
+ * heap buffer to copy into a temporary direct one. Parts that don't fit
+ * follow in further bufferfuls. Large file regions go out with
+ * transferTo(). Works on blocking and non-blocking channels alike; on a
+ * non-blocking one write() simply stops when the socket is full and picks
+ * up where it left off on the next call. The buffer is only held while a
+ * response is being written.
+ */
+public class ResponseWriter {
+    private final long zeroCopyThreshold;
+    private final long writeTimeout; // millis, 0 for none
+    private final long minDataRate;  // bytes a second, 0 for none
+    private final BufferPool buffers;
+    private final FileChannelCache fileChannels; // null to open the file for every response
+
+    private HttpResponse response;
+    private boolean headPending;
+    private int nextPart;
+    private long partDone;   // bytes of the head or next part already copied
+    private ByteBuffer out;  // pooled, in drain mode while holding unwritten bytes
+    private boolean outPending;
+    private FileChannel file;
+    private FileChannelCache.Handle fileHandle; // where file came from, if cached
+    private long filePos;
+    private long fileEnd;
+
+    public ResponseWriter(long zeroCopyThreshold) {
+        this(zeroCopyThreshold, 0, 0, new BufferPool(16 * 1024, 1), null);
+    }
+
+    public ResponseWriter(ServerContext context) {
+        this(context.config.zeroCopyThreshold, context.config.writeTimeout, context.config.minDataRate,
+             context.buffers, context.fileChannels);
+    }
+
+    public ResponseWriter(long zeroCopyThreshold, int writeTimeout, long minDataRate, BufferPool buffers,
+                          FileChannelCache fileChannels) {
+        this.zeroCopyThreshold = zeroCopyThreshold;
+        this.writeTimeout = writeTimeout * 1000L;
+        this.minDataRate = minDataRate;
+        this.buffers = buffers;
+        this.fileChannels = fileChannels;
+    }
+
+    /**
+     * When a response started now must have been written by: the write
+     * timeout, plus however long its body takes at the minimum data rate.
+     * Long.MAX_VALUE if there is no write timeout.
+     */
+    public long deadline(HttpResponse response) {
+        if (writeTimeout == 0) {
+            return Long.MAX_VALUE;
+        }
+        long allowed = writeTimeout;
+        if (minDataRate > 0) {
+            allowed += (response.head.length + response.bodyLength()) * 1000 / minDataRate;
+        }
+        return System.currentTimeMillis() + allowed;
+    }
+
+    public void start(HttpResponse response) throws IOException {
+        this.response = response;
+        headPending = true;
+        nextPart = 0;
+        partDone = 0;
+        if (response.file != null && fileChannels != null) {
+            fileHandle = fileChannels.acquire(response.file, response.lastModified);
+            file = fileHandle.channel;
+        } else if (response.file != null) {
+            file = FileChannel.open(response.file.toPath(), StandardOpenOption.READ);
+        }
+    }
+
+    /**
+     * True from start() until the whole response has been written.
+     */
+    public boolean writing() {
+        return response != null;
+    }
+
+    /**
+     * Writes as much of the current response as the channel will take.
+     * Returns true once the whole response has been written.
+     */
+    public boolean write(SocketChannel channel) throws IOException {
+        while (true) {
+            if (outPending) {
+                channel.write(out);
+                if (out.hasRemaining()) return false;
+                outPending = false;
+            }
+            while (filePos < fileEnd) {
+                long written = file.transferTo(filePos, fileEnd - filePos, channel);
+                if (written == 0) {
+                    if (filePos >= file.size()) throw new IOException("file shrank while being sent");
+                    return false;
+                }
+                filePos += written;
+            }
+            if (!headPending && nextPart == response.body.length) {
+                break;
+            }
+            prepareNext();
+        }
+
+        close();
+        return true;
+    }
+
+    /**
+     * Writes the whole response to a blocking channel.
+     */
+    public void writeFully(HttpResponse response, SocketChannel channel) throws IOException {
+        start(response);
+        try {
+            while (!write(channel));
+        }
+        finally {
+            close();
+        }
+    }
+
+    /**
+     * Drops the current response, if any, and releases its buffer and file.
+     */
+    public void close() throws IOException {
+        response = null;
+        if (out != null) {
+            buffers.release(out);
+            out = null;
+            outPending = false;
+        }
+        filePos = fileEnd = 0;
+        if (fileHandle != null) {
+            FileChannelCache.Handle h = fileHandle;
+            fileHandle = null;
+            file = null;
+            fileChannels.release(h);
+        } else if (file != null) {
+            FileChannel fc = file;
+            file = null;
+            fc.close();
+        }
+    }
+
+    /**
+     * Lines up the next stretch of the response: as much of the head and
+     * of the parts that are in memory, or small enough to read into
+     * memory, as fits in the buffer, or else a large file region to be
+     * sent with transferTo().
+     */
+    private void prepareNext() throws IOException {
+        if (out == null) {
+            out = buffers.acquire();
+        }
+        out.clear();
+        if (headPending) {
+            int n = (int) Math.min(out.remaining(), response.head.length - partDone);
+            out.put(response.head, (int) partDone, n);
+            partDone += n;
+            if (partDone < response.head.length) {
+                flip();
+                return;
+            }
+            headPending = false;
+            partDone = 0;
+        }
+        while (nextPart < response.body.length && out.hasRemaining()) {
+            HttpResponse.Part part = response.body[nextPart];
+            int n = (int) Math.min(out.remaining(), part.length - partDone);
+            if (part.bytes != null) {
+                out.put(part.bytes, (int) (part.offset + partDone), n);
+            } else if (part.length < zeroCopyThreshold) {
+                ByteBuffer region = out.slice().limit(n);
+                while (region.hasRemaining()) {
+                    if (file.read(region, part.offset + partDone + region.position()) < 0) {
+                        throw new IOException("file shrank while being sent");
+                    }
+                }
+                out.position(out.position() + n);
+            } else {
+                if (out.position() > 0) break; // send what we have first
+                filePos = part.offset;
+                fileEnd = part.offset + part.length;
+                nextPart++;
+                break;
+            }
+            partDone += n;
+            if (partDone == part.length) {
+                nextPart++;
+                partDone = 0;
+            }
+        }
+        flip();
+    }
+
+    private void flip() {
+        out.flip();
+        outPending = out.hasRemaining();
+    }
+}
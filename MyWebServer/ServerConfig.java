@@ -0,0 +1,287 @@
+/*
+ * ServerConfig.java
+ */
+
+/**
+ * Command line configuration for MyWebServer.
+ *
+ * The first two arguments are always the port and the document root,
+ * anything after that is an optional "--name=value" switch.
+ */
+public class ServerConfig {
+
+    public static final String USAGE =
+        "Usage: java MyWebServer <port number> <directory> [options]\n" +
+        "Options:\n" +
+        "  --engine=blocking|nio        blocking thread-per-connection or NIO event loops (default: blocking)\n" +
+        "  --event-loops=N              event loop threads for --engine=nio (default: number of cores)\n" +
+        "  --mode=serial|pool|virtual   how accepted connections are run (default: pool)\n" +
+        "  --threads=N                  worker threads for --mode=pool, each serves one connection at a time; idle\n" +
+        "                               keep-alive connections are closed when others are queued (default: number of cores)\n" +
+        "  --acceptors=N                accept threads, each with its own SO_REUSEPORT socket and share of the workers (default: 1)\n" +
+        "  --backlog=N                  listen backlog, 0 for the JVM default of 50 (default: 0)\n" +
+        "  --max-connections=N          connections served at once, more get a 503, 0 for no limit (default: 10000)\n" +
+        "  --max-pending=N              connections waiting for a --mode=pool worker, more get a 503 (default: 1024)\n" +
+        "  --retry-after=SECONDS        Retry-After sent with those 503s (default: 1)\n" +
+        "  --keep-alive-timeout=SECONDS idle time before a persistent connection is closed (default: 5)\n" +
+        "  --max-requests=N             requests served on one connection before it is closed (default: 100)\n" +
+        "  --header-timeout=SECONDS     time a client has to send a whole request head (default: 10)\n" +
+        "  --write-timeout=SECONDS      time a response may take to send, on top of --min-data-rate (default: 30)\n" +
+        "  --min-data-rate=BYTES        slowest rate in bytes a second a client may read a response at, 0 disables it (default: 1024)\n" +
+        "  --max-header-size=BYTES      largest request line plus headers we accept (default: 8192)\n" +
+        "  --zero-copy-threshold=BYTES  files at least this large are sent with transferTo() (default: 16384)\n" +
+        "  --buffer-size=BYTES          size of the pooled direct buffers requests are read into and responses staged in (default: 16384)\n" +
+        "  --buffer-pool=N              idle buffers kept in the pool for reuse (default: 1024)\n" +
+        "  --cache-size=BYTES           memory for cached file contents, 0 disables the cache (default: 67108864)\n" +
+        "  --cache-max-file=BYTES       largest file kept in the content cache (default: 262144)\n" +
+        "  --compression-cache-size=BYTES memory for gzipped copies of text files, 0 disables on-the-fly gzip (default: 16777216)\n" +
+        "  --compression-max-file=BYTES largest file gzipped on the fly (default: 1048576)\n" +
+        "  --warm-up=BYTES              load up to this much into the content cache at startup, 0 disables it (default: 0)\n" +
+        "  --hot-paths=PATH             save the most hit cached paths to PATH on shutdown and warm them first (default: none)\n" +
+        "  --open-file-cache=N          open files shared between responses sent from disk, 0 disables it (default: 1000)\n" +
+        "  --metadata-cache-entries=N   request paths whose file metadata is cached, 0 disables it (default: 10000)\n" +
+        "  --negative-cache-entries=N   request paths known not to exist kept by the metadata cache, 0 disables it (default: 10000)\n" +
+        "  --stats=on|off               serve live statistics at /__stats (default: off)\n" +
+        "  --stats-interval=SECONDS     log a statistics line this often, 0 disables it (default: 0)\n" +
+        "  --access-log=PATH            append an access log line per request to PATH (default: none)\n" +
+        "  --access-log-format=common|combined  access log line format (default: combined)\n" +
+        "  --access-log-buffer=N        log lines queued for the writer thread before lines are dropped (default: 65536)";
+
+    public int port;
+    public String dir;
+
+    // connection execution
+    public String engine = "blocking";
+    public int eventLoops = Runtime.getRuntime().availableProcessors();
+    public String mode = "pool";
+    public int threads = Runtime.getRuntime().availableProcessors();
+
+    // listening
+    public int acceptors = 1;
+
+    // overload protection
+    public int backlog = 0;
+    public int maxConnections = 10000;
+    public int maxPending = 1024;
+    public int retryAfter = 1;
+
+    // persistent connections
+    public int keepAliveTimeout = 5;
+    public int maxRequests = 100;
+    public int maxHeaderSize = 8192;
+
+    // slow clients
+    public int headerTimeout = 10;
+    public int writeTimeout = 30;
+    public long minDataRate = 1024;
+
+    // static file transmission
+    public long zeroCopyThreshold = 16 * 1024;
+
+    // I/O buffers
+    public int bufferSize = 16 * 1024;
+    public int bufferPool = 1024;
+
+    // content cache
+    public long cacheSize = 64 * 1024 * 1024;
+    public long cacheMaxFile = 256 * 1024;
+
+    // cache warm-up
+    public long warmUp = 0;
+    public String hotPaths = null;
+
+    // on-the-fly compression
+    public long compressionCacheSize = 16 * 1024 * 1024;
+    public long compressionMaxFile = 1024 * 1024;
+
+    // open file cache
+    public int openFileCache = 1000;
+
+    // metadata cache
+    public int metadataCacheEntries = 10000;
+    public int negativeCacheEntries = 10000;
+
+    // statistics
+    public boolean stats = false;
+    public int statsInterval = 0;
+
+    // access log
+    public String accessLog = null;
+    public boolean accessLogCombined = true;
+    public int accessLogBuffer = 64 * 1024;
+
+    public static ServerConfig parse(String[] args) {
+        if (args.length < 2) {
+            throw new IllegalArgumentException("missing port number or directory");
+        }
+
+        ServerConfig config = new ServerConfig();
+
+        try {
+            config.port = Integer.parseInt(args[0]);
+            if (config.port < 0) throw new NumberFormatException("server: Failed to resolve port number.");
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid port number: " + args[0]);
+        }
+        config.dir = args[1];
+
+        for (int i = 2; i < args.length; i++) {
+            String arg = args[i];
+            int eqIdx = arg.indexOf('=');
+            if (!arg.startsWith("--") || eqIdx < 0) {
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            }
+            config.set(arg.substring(2, eqIdx), arg.substring(eqIdx + 1));
+        }
+
+        return config;
+    }
+
+    private void set(String name, String val) {
+        switch (name) {
+            case "engine":
+                if (!val.equals("blocking") && !val.equals("nio")) {
+                    throw new IllegalArgumentException("Invalid engine: " + val);
+                }
+                engine = val;
+                break;
+            case "event-loops":
+                eventLoops = positiveInt(name, val);
+                break;
+            case "mode":
+                if (!val.equals("serial") && !val.equals("pool") && !val.equals("virtual")) {
+                    throw new IllegalArgumentException("Invalid mode: " + val);
+                }
+                mode = val;
+                break;
+            case "threads":
+                threads = positiveInt(name, val);
+                break;
+            case "acceptors":
+                acceptors = positiveInt(name, val);
+                break;
+            case "backlog":
+                backlog = nonNegativeInt(name, val);
+                break;
+            case "max-connections":
+                maxConnections = nonNegativeInt(name, val);
+                break;
+            case "max-pending":
+                maxPending = positiveInt(name, val);
+                break;
+            case "retry-after":
+                retryAfter = nonNegativeInt(name, val);
+                break;
+            case "keep-alive-timeout":
+                keepAliveTimeout = positiveInt(name, val);
+                break;
+            case "max-requests":
+                maxRequests = positiveInt(name, val);
+                break;
+            case "header-timeout":
+                headerTimeout = positiveInt(name, val);
+                break;
+            case "write-timeout":
+                writeTimeout = positiveInt(name, val);
+                break;
+            case "min-data-rate":
+                minDataRate = nonNegativeLong(name, val);
+                break;
+            case "max-header-size":
+                maxHeaderSize = positiveInt(name, val);
+                break;
+            case "zero-copy-threshold":
+                zeroCopyThreshold = nonNegativeLong(name, val);
+                break;
+            case "buffer-size":
+                bufferSize = positiveInt(name, val);
+                if (bufferSize < 1024) {
+                    throw new IllegalArgumentException("Invalid value for --buffer-size, must be at least 1024: " + val);
+                }
+                break;
+            case "buffer-pool":
+                bufferPool = nonNegativeInt(name, val);
+                break;
+            case "cache-size":
+                cacheSize = nonNegativeLong(name, val);
+                break;
+            case "cache-max-file":
+                cacheMaxFile = nonNegativeLong(name, val);
+                break;
+            case "warm-up":
+                warmUp = nonNegativeLong(name, val);
+                break;
+            case "hot-paths":
+                hotPaths = val.isEmpty() ? null : val;
+                break;
+            case "compression-cache-size":
+                compressionCacheSize = nonNegativeLong(name, val);
+                break;
+            case "compression-max-file":
+                compressionMaxFile = nonNegativeLong(name, val);
+                break;
+            case "open-file-cache":
+                openFileCache = nonNegativeInt(name, val);
+                break;
+            case "metadata-cache-entries":
+                metadataCacheEntries = nonNegativeInt(name, val);
+                break;
+            case "negative-cache-entries":
+                negativeCacheEntries = nonNegativeInt(name, val);
+                break;
+            case "stats":
+                if (!val.equals("on") && !val.equals("off")) {
+                    throw new IllegalArgumentException("Invalid value for --stats: " + val);
+                }
+                stats = val.equals("on");
+                break;
+            case "stats-interval":
+                statsInterval = nonNegativeInt(name, val);
+                break;
+            case "access-log":
+                accessLog = val.isEmpty() ? null : val;
+                break;
+            case "access-log-format":
+                if (!val.equals("common") && !val.equals("combined")) {
+                    throw new IllegalArgumentException("Invalid access log format: " + val);
+                }
+                accessLogCombined = val.equals("combined");
+                break;
+            case "access-log-buffer":
+                accessLogBuffer = positiveInt(name, val);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: --" + name);
+        }
+    }
+
+    private static long nonNegativeLong(String name, String val) {
+        try {
+            long n = Long.parseLong(val);
+            if (n < 0) throw new NumberFormatException();
+            return n;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for --" + name + ": " + val);
+        }
+    }
+
+    private static int nonNegativeInt(String name, String val) {
+        try {
+            int n = Integer.parseInt(val);
+            if (n < 0) throw new NumberFormatException();
+            return n;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for --" + name + ": " + val);
+        }
+    }
+
+    private static int positiveInt(String name, String val) {
+        try {
+            int n = Integer.parseInt(val);
+            if (n <= 0) throw new NumberFormatException();
+            return n;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for --" + name + ": " + val);
+        }
+    }
+}
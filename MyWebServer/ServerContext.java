@@ -0,0 +1,58 @@
+/*
+ * ServerContext.java
+ */
+import java.io.IOException;
+
+/**
+ * State shared by every connection: the configuration, the caches built
+ * from it, the pool of I/O buffers and the server's statistics. Created
+ * once at startup and handed to both engines.
+ */
+public class ServerContext {
+    public final ServerConfig config;
+    public final ContentCache contentCache;
+    public final MetadataCache metadataCache;
+    public final CompressionCache compressionCache;
+    public final FileChannelCache fileChannels;
+    public final BufferPool buffers;
+    public final ServerStats stats;
+    public final ConnectionLimiter limiter;
+    public final AccessLog accessLog;
+
+    public ServerContext(ServerConfig config) throws IOException {
+        this.config = config;
+        MetadataCache metadataCache = null;
+        try {
+            if (config.metadataCacheEntries > 0) {
+                metadataCache = new MetadataCache(config.dir, config.metadataCacheEntries,
+                                                  config.negativeCacheEntries);
+            }
+        }
+        catch (IOException e) {
+            // we can still serve, just without the cache
+            System.err.println("Could not watch directory " + config.dir + ", metadata cache disabled: "
+                               + e.getMessage());
+        }
+        this.metadataCache = metadataCache;
+        this.contentCache = config.cacheSize > 0
+            ? new ContentCache(config.cacheSize, config.cacheMaxFile)
+            : null;
+        this.compressionCache = config.compressionCacheSize > 0
+            ? new CompressionCache(config.compressionCacheSize, config.compressionMaxFile)
+            : null;
+        this.fileChannels = config.openFileCache > 0
+            ? new FileChannelCache(config.openFileCache)
+            : null;
+        this.buffers = new BufferPool(config.bufferSize, config.bufferPool);
+        this.stats = new ServerStats(contentCache, metadataCache, compressionCache, fileChannels, buffers);
+        this.limiter = new ConnectionLimiter(config, stats);
+        try {
+            this.accessLog = config.accessLog != null
+                ? new AccessLog(config.accessLog, config.accessLogCombined, config.accessLogBuffer)
+                : null;
+        }
+        catch (IOException e) {
+            throw new IOException("Could not open access log " + config.accessLog + ": " + e.getMessage(), e);
+        }
+    }
+}
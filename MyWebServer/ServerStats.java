@@ -0,0 +1,234 @@
+/*
+ * ServerStats.java
+ */
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters describing what the server has been doing: connections,
+ * responses by status code, bytes sent and how long requests took, plus
+ * the hit ratios of the caches and how many pooled buffers are in use.
+ * Every counter is a LongAdder (and the histograms are striped) so the
+ * threads serving requests don't contend on them; reading them sums the
+ * stripes, which is only done when someone asks for /__stats or the
+ * periodic log line is due.
+ */
+public class ServerStats {
+
+    private static final int STRIPES = Runtime.getRuntime().availableProcessors() * 2;
+
+    private final long started = System.currentTimeMillis();
+
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder connectionsClosed = new LongAdder();
+    private final LongAdder connectionsRejected = new LongAdder();
+    private final LongAdder headerTimeouts = new LongAdder();
+    private final LongAdder writeTimeouts = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder[] statuses = new LongAdder[600];
+
+    // microseconds spent working out each response, and until it was written
+    private final LatencyHistogram handleTime = new LatencyHistogram(STRIPES);
+    private final LatencyHistogram responseTime = new LatencyHistogram(STRIPES);
+
+    private final ContentCache contentCache;
+    private final MetadataCache metadataCache;
+    private final CompressionCache compressionCache;
+    private final FileChannelCache fileChannels;
+    private final BufferPool buffers;
+
+    public ServerStats(ContentCache contentCache, MetadataCache metadataCache, CompressionCache compressionCache,
+                       FileChannelCache fileChannels, BufferPool buffers) {
+        this.contentCache = contentCache;
+        this.metadataCache = metadataCache;
+        this.compressionCache = compressionCache;
+        this.fileChannels = fileChannels;
+        this.buffers = buffers;
+        for (int i = 0; i < statuses.length; i++) {
+            statuses[i] = new LongAdder();
+        }
+    }
+
+    public void connectionOpened() {
+        connectionsOpened.increment();
+    }
+
+    public void connectionClosed() {
+        connectionsClosed.increment();
+    }
+
+    /**
+     * A connection was shed with a 503 because the server was saturated,
+     * it never counts as opened.
+     */
+    public void connectionRejected(long bytes) {
+        connectionsRejected.increment();
+        statuses[503].increment();
+        bytesSent.add(bytes);
+    }
+
+    /**
+     * A connection was closed because the client didn't send a request
+     * head in time.
+     */
+    public void headerTimeout() {
+        headerTimeouts.increment();
+    }
+
+    /**
+     * A connection was closed because the client didn't read a response
+     * fast enough.
+     */
+    public void writeTimeout() {
+        writeTimeouts.increment();
+    }
+
+    /**
+     * A response was worked out for a request whose head was complete at
+     * start (System.nanoTime()).
+     */
+    public void handled(long start) {
+        handleTime.record((System.nanoTime() - start) / 1000);
+    }
+
+    /**
+     * A response was written in full.
+     */
+    public void sent(HttpResponse response, long start) {
+        requests.increment();
+        statuses[response.status].increment();
+        bytesSent.add(response.head.length + response.bodyLength());
+        responseTime.record((System.nanoTime() - start) / 1000);
+    }
+
+    public long activeConnections() {
+        // closed first so a connection closing in between can't make this negative
+        long closed = connectionsClosed.sum();
+        return connectionsOpened.sum() - closed;
+    }
+
+    public long requests() {
+        return requests.sum();
+    }
+
+    /**
+     * The /__stats page, one "name value" pair per line.
+     */
+    public byte[] toBytes() {
+        StringBuilder sb = new StringBuilder();
+        line(sb, "uptime_seconds", (System.currentTimeMillis() - started) / 1000);
+        line(sb, "connections_active", activeConnections());
+        line(sb, "connections_total", connectionsOpened.sum());
+        line(sb, "connections_rejected", connectionsRejected.sum());
+        line(sb, "timeouts_header", headerTimeouts.sum());
+        line(sb, "timeouts_write", writeTimeouts.sum());
+        line(sb, "requests_total", requests());
+        for (int i = 0; i < statuses.length; i++) {
+            long n = statuses[i].sum();
+            if (n != 0) line(sb, "responses_" + i, n);
+        }
+        line(sb, "bytes_sent", bytesSent.sum());
+        if (contentCache != null) {
+            cache(sb, "content_cache", contentCache.hits(), contentCache.misses());
+            line(sb, "content_cache_coalesced", contentCache.coalesced());
+        }
+        if (metadataCache != null) {
+            cache(sb, "metadata_cache", metadataCache.hits(), metadataCache.misses());
+            line(sb, "metadata_cache_missing_hits", metadataCache.missingHits());
+            line(sb, "metadata_cache_missing_paths", metadataCache.missingCount());
+        }
+        if (compressionCache != null) {
+            cache(sb, "compression_cache", compressionCache.hits(), compressionCache.misses());
+            line(sb, "compression_cache_coalesced", compressionCache.coalesced());
+        }
+        if (fileChannels != null) {
+            cache(sb, "file_channel_cache", fileChannels.hits(), fileChannels.misses());
+            line(sb, "file_channel_cache_open", fileChannels.count());
+        }
+        line(sb, "buffers_in_use", buffers.inUse());
+        line(sb, "buffers_idle", buffers.idle());
+        line(sb, "buffers_acquired", buffers.acquired());
+        line(sb, "buffers_allocated", buffers.allocated());
+        line(sb, "buffers_dropped", buffers.dropped());
+        histogram(sb, "handle_time_us", handleTime);
+        histogram(sb, "response_time_us", responseTime);
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * A one line summary for the log.
+     */
+    public String toString() {
+        StringBuilder sb = new StringBuilder("stats: ");
+        sb.append(requests()).append(" requests, ")
+          .append(activeConnections()).append(" active connections, ")
+          .append(connectionsRejected.sum()).append(" rejected, ")
+          .append(headerTimeouts.sum() + writeTimeouts.sum()).append(" timed out, ")
+          .append(bytesSent.sum()).append(" bytes sent,");
+        for (int i = 0; i < statuses.length; i++) {
+            long n = statuses[i].sum();
+            if (n != 0) sb.append(' ').append(i).append('=').append(n);
+        }
+        if (contentCache != null) {
+            sb.append(", content cache ").append(percent(contentCache.hits(), contentCache.misses())).append(" hits");
+        }
+        if (metadataCache != null) {
+            sb.append(", metadata cache ").append(percent(metadataCache.hits(), metadataCache.misses())).append(" hits");
+        }
+        sb.append(", ").append(buffers.inUse()).append(" buffers in use, ")
+          .append(buffers.idle()).append(" idle");
+        sb.append(", response us p50=").append(responseTime.percentile(50))
+          .append(" p99=").append(responseTime.percentile(99))
+          .append(" p99.9=").append(responseTime.percentile(99.9))
+          .append(" max=").append(responseTime.max());
+        return sb.toString();
+    }
+
+    /**
+     * Prints toString() every interval seconds on a daemon thread.
+     */
+    public void startLogging(int interval) {
+        Thread t = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(interval * 1000L);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                System.out.println(this);
+            }
+        }, "stats-log");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static void line(StringBuilder sb, String name, Object value) {
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void cache(StringBuilder sb, String name, long hits, long misses) {
+        line(sb, name + "_hits", hits);
+        line(sb, name + "_misses", misses);
+        line(sb, name + "_hit_ratio", String.format("%.4f", ratio(hits, misses)));
+    }
+
+    private static void histogram(StringBuilder sb, String name, LatencyHistogram h) {
+        line(sb, name + "_count", h.count());
+        line(sb, name + "_mean", String.format("%.1f", h.mean()));
+        line(sb, name + "_p50", h.percentile(50));
+        line(sb, name + "_p90", h.percentile(90));
+        line(sb, name + "_p99", h.percentile(99));
+        line(sb, name + "_p999", h.percentile(99.9));
+        line(sb, name + "_max", h.max());
+    }
+
+    private static double ratio(long hits, long misses) {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    private static String percent(long hits, long misses) {
+        return String.format("%.1f%%", ratio(hits, misses) * 100);
+    }
+}
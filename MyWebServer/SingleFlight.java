@@ -0,0 +1,75 @@
+/*
+ * SingleFlight.java
+ */
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces concurrent loads of the same thing. The first caller to ask
+ * for a key runs the load; callers asking for the same key while it is
+ * running wait for it and get the same result, or the same exception,
+ * instead of each reading the file again. Once the load is done the key
+ * is forgotten, so the next miss loads afresh.
+ *
+ * Keys should name the version being loaded (path, modification time and
+ * length) so a request for a new version of a file never gets handed an
+ * old one that happened to be loading.
+ */
+public class SingleFlight<V> {
+
+    public interface Loader<V> {
+        V load() throws IOException;
+    }
+
+    private final ConcurrentHashMap<String, CompletableFuture<V>> loading = new ConcurrentHashMap<>();
+    private final LongAdder coalesced = new LongAdder();
+
+    public V load(String key, Loader<V> loader) throws IOException {
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> theirs = loading.putIfAbsent(key, mine);
+        if (theirs != null) {
+            coalesced.increment();
+            return await(theirs);
+        }
+        try {
+            V value = loader.load();
+            mine.complete(value);
+            return value;
+        }
+        catch (Throwable t) {
+            // whatever went wrong, the waiters mustn't be left hanging
+            mine.completeExceptionally(t);
+            throw t;
+        }
+        finally {
+            loading.remove(key, mine);
+        }
+    }
+
+    private static <V> V await(CompletableFuture<V> future) throws IOException {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for a load");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw new IOException(cause.getMessage(), cause);
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Loads that waited for another caller's instead of running their own.
+     */
+    public long coalesced() {
+        return coalesced.sum();
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * HeaderBenchmark.java
+ */
+package webserver;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of building the response heads the server sends most, a full 200
+ * for a static file and a bare 304, and of the cached Date line that
+ * starts every one of them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderBenchmark {
+
+    static final byte[] ETAG = MyWebServer.Header.ascii("ETag: \"18f2a3c4b10-1f40\"\r\n");
+
+    private long lastModified = 783459811000L;
+    private long length = 8000;
+
+    @Benchmark
+    public byte[] dateLine() {
+        return HttpDate.dateLine();
+    }
+
+    @Benchmark
+    public byte[] ok() {
+        return MyWebServer.Header.start(MyWebServer.Header.OK)
+            .setLastModified(lastModified)
+            .setContentLength(length)
+            .add(ETAG)
+            .add(MyWebServer.Header.ACCEPT_RANGES)
+            .setConnection(true, 5, 99)
+            .toBytes();
+    }
+
+    @Benchmark
+    public byte[] notModified() {
+        return MyWebServer.Header.start(MyWebServer.Header.NOT_MODIFIED)
+            .add(ETAG)
+            .setConnection(true, 5, 99)
+            .toBytes();
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * HttpDateBenchmark.java
+ */
+package webserver;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of parsing If-Modified-Since in each of the three formats HTTP
+ * allows. "repeated" sends the same date every time, as a browser
+ * revalidating one file does, and is answered from HttpDate's cache of the
+ * last value; "alternating" switches between two dates so every call parses.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpDateBenchmark {
+
+    @Param({"rfc1123", "rfc850", "asctime"})
+    public String format;
+
+    private String[] dates;
+    private int next;
+
+    @Setup
+    public void setup() {
+        switch (format) {
+            case "rfc850":
+                dates = new String[] { "Saturday, 29-Oct-94 19:43:31 GMT", "Sunday, 06-Nov-94 08:49:37 GMT" };
+                break;
+            case "asctime":
+                dates = new String[] { "Sat Oct 29 19:43:31 1994", "Sun Nov  6 08:49:37 1994" };
+                break;
+            default:
+                dates = new String[] { "Sat, 29 Oct 1994 19:43:31 GMT", "Sun, 06 Nov 1994 08:49:37 GMT" };
+        }
+    }
+
+    @Benchmark
+    public long repeated() {
+        return HttpDate.parse(dates[0]);
+    }
+
+    @Benchmark
+    public long alternating() {
+        next ^= 1;
+        return HttpDate.parse(dates[next]);
+    }
+}
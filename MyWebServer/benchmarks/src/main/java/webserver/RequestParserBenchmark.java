@@ -0,0 +1,75 @@
+/*
+ * RequestParserBenchmark.java
+ */
+package webserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of turning a request head into an HttpRequest, for a bare curl
+ * request and for the header block a browser sends on a revalidation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestParserBenchmark {
+
+    static final String CURL =
+        "GET /index.html HTTP/1.1\r\n" +
+        "Host: localhost:8817\r\n" +
+        "User-Agent: curl/8.5.0\r\n" +
+        "Accept: */*\r\n" +
+        "\r\n";
+
+    static final String BROWSER =
+        "GET /css/site.css HTTP/1.1\r\n" +
+        "Host: www.example.com\r\n" +
+        "Connection: keep-alive\r\n" +
+        "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/124.0 Safari/537.36\r\n" +
+        "Accept: text/css,*/*;q=0.1\r\n" +
+        "Referer: http://www.example.com/\r\n" +
+        "Accept-Encoding: gzip, deflate, br\r\n" +
+        "Accept-Language: en-US,en;q=0.9\r\n" +
+        "If-None-Match: \"18f2a3c4b10-1f40\"\r\n" +
+        "If-Modified-Since: Sat, 29 Oct 1994 19:43:31 GMT\r\n" +
+        "\r\n";
+
+    @Param({"curl", "browser"})
+    public String request;
+
+    private RequestParser parser;
+    private ByteBuffer buf;
+
+    @Setup
+    public void setup() {
+        parser = new RequestParser(8192);
+        String text = request.equals("curl") ? CURL : BROWSER;
+        buf = ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Benchmark
+    public HttpRequest parse() {
+        buf.rewind();
+        parser.reset();
+        if (parser.parse(buf) != RequestParser.DONE) {
+            throw new IllegalStateException("request did not parse");
+        }
+        return parser.request();
+    }
+}
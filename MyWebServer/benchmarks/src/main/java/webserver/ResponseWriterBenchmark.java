@@ -0,0 +1,103 @@
+/*
+ * ResponseWriterBenchmark.java
+ */
+package webserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of sending a file response over a loopback connection, the loop
+ * that used to live in MyWebServer.HTTPConnection. Files below the
+ * zero-copy threshold are read and gathered with the head into one write,
+ * larger ones go out with transferTo(). A background thread drains the
+ * other end of the connection.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseWriterBenchmark {
+
+    @Param({"1024", "65536", "1048576"})
+    public int size;
+
+    @Param({"16384"})
+    public long zeroCopyThreshold;
+
+    private File file;
+    private SocketChannel channel;
+    private SocketChannel peer;
+    private Thread drain;
+    private ResponseWriter writer;
+    private HttpResponse response;
+
+    @Setup
+    public void setup() throws IOException {
+        file = File.createTempFile("bench", ".bin");
+        byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        Files.write(file.toPath(), data);
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            peer = SocketChannel.open(server.getLocalAddress());
+            channel = server.accept();
+        }
+        drain = new Thread(() -> {
+            ByteBuffer buf = ByteBuffer.allocateDirect(256 * 1024);
+            try {
+                while (peer.read(buf) >= 0) {
+                    buf.clear();
+                }
+            }
+            catch (IOException e) {
+                // closed by tearDown
+            }
+        }, "drain");
+        drain.setDaemon(true);
+        drain.start();
+
+        writer = new ResponseWriter(zeroCopyThreshold);
+        MyWebServer.Header header = MyWebServer.Header.start(MyWebServer.Header.OK)
+            .setLastModified(file.lastModified())
+            .setContentLength(size)
+            .setConnection(true, 5, 99);
+        response = HttpResponse.of(header, file, file.lastModified(), size, true);
+    }
+
+    @Benchmark
+    public void write() throws IOException {
+        writer.writeFully(response, channel);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        channel.close();
+        peer.close();
+        drain.join();
+        file.delete();
+    }
+}
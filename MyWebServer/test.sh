@@ -11,3 +11,41 @@ curl -i http://localhost:8817/foobar -H "If-Modified-Since: bad date"
 curl -i http://localhost:8817/foobar -H "If-Modified-Since"
 curl -i -X PUT http://localhost:8817/foobaradf
 curl -i http://localhost:8817/test-dir
+
+# byte ranges
+curl -i http://localhost:8817/foobar -H "Range: bytes=0-4"
+curl -i http://localhost:8817/foobar -H "Range: bytes=-6"
+curl -i http://localhost:8817/foobar -H "Range: bytes=0-1,6-10"
+curl -i http://localhost:8817/foobar -H "Range: bytes=0-4,2-7"
+curl -i http://localhost:8817/foobar -H "Range: bytes=0-,0-"
+curl -i http://localhost:8817/foobar -H "Range: bytes=100-"
+curl -i http://localhost:8817/foobar -H "Range: lines=0-4"
+
+# validators
+etag=$(curl -sI http://localhost:8817/foobar | tr -d '\r' | sed -n 's/^ETag: //p')
+curl -i http://localhost:8817/foobar -H "If-None-Match: $etag"
+curl -i http://localhost:8817/foobar -H "If-None-Match: \"nope\", $etag"
+curl -i http://localhost:8817/foobar -H "If-None-Match: *"
+curl -i http://localhost:8817/foobar -H "If-None-Match: \"nope\""
+curl -i http://localhost:8817/foobar -H "Range: bytes=0-4" -H "If-Range: $etag"
+curl -i http://localhost:8817/foobar -H "Range: bytes=0-4" -H "If-Range: \"nope\""
+curl -i http://localhost:8817/foobar -H "Range: bytes=0-4" -H "If-Range: Sat, 29 Oct 1994 00:00:01 GMT"
+
+# gzip, and the ETag a gzip client revalidates with
+curl -i http://localhost:8817/README.md -H "Accept-Encoding: gzip" --head
+gzetag=$(curl -sI http://localhost:8817/README.md -H "Accept-Encoding: gzip" | tr -d '\r' | sed -n 's/^ETag: //p')
+curl -i http://localhost:8817/README.md -H "Accept-Encoding: gzip" -H "If-None-Match: $gzetag"
+curl -i http://localhost:8817/README.md -H "Accept-Encoding: gzip" -H "If-Modified-Since: Sat, 29 Oct 2094 00:00:01 GMT"
+curl -i http://localhost:8817/README.md -H "Accept-Encoding: gzip" -H "Range: bytes=0-9"
+
+# pipelining: two responses, the second closing the connection
+exec 3<>/dev/tcp/localhost/8817
+printf 'GET /foobar HTTP/1.1\r\nHost: localhost\r\n\r\nGET /foobar HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n' >&3
+cat <&3
+exec 3<&-
+
+# a request body is skipped, not answered as a second request
+exec 3<>/dev/tcp/localhost/8817
+printf 'GET /foobar HTTP/1.1\r\nContent-Length: 43\r\n\r\nGET /test-dir HTTP/1.1\r\nHost: localhost\r\n\r\nGET /foobar HTTP/1.1\r\nConnection: close\r\n\r\n' >&3
+cat <&3
+exec 3<&-